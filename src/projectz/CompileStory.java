@@ -0,0 +1,84 @@
+package projectz;
+
+import zmachine.CompiledStory;
+import zmachine.StoryCompiler;
+import zmachine.ZError;
+import zmachine.ZMachine;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+/**
+ * Compiles a story into a jar that plays it (see StoryCompiler).
+ * Arguments: story jar [script]
+ *
+ * Given a script of input lines, it then plays the script through both the
+ * interpreter and the jar, with the same random numbers, and checks that
+ * the transcripts and final states match. Exits with 1 if they don't.
+ */
+public class CompileStory {
+    private static final long SEED = 42;
+    
+    public static void main(String[] args) throws ZError, IOException {
+        File story = new File(args[0]);
+        File jar = new File(args[1]);
+        StoryCompiler compiler = new StoryCompiler(story);
+        compiler.compile();
+        compiler.write(jar, CompiledGame.class.getName());
+        System.out.println(compiler);
+        if(args.length > 2 && !compare(story, jar, ScriptIO.read(new File(args[2])))) {
+            System.exit(1);
+        }
+    }
+    
+    private static boolean compare(File story, File jar, List<String> script) throws ZError, IOException {
+        ScriptIO interpreterIO = new ScriptIO(script);
+        ZMachine interpreter = new ZMachine(interpreterIO, story);
+        long interpreterTime = play(interpreter, interpreterIO);
+        
+        URLClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, CompileStory.class.getClassLoader());
+        ScriptIO compiledIO = new ScriptIO(script);
+        ZMachine compiled = new CompiledStory(compiledIO, loader);
+        long compiledTime = play(compiled, compiledIO);
+        
+        System.out.println(String.format("Interpreted in %.1f ms, compiled in %.1f ms (%s)",
+                interpreterTime / 1e6, compiledTime / 1e6, compiled.getJit()));
+        String expected = interpreterIO.getTranscript();
+        String actual = compiledIO.getTranscript();
+        if(!expected.equals(actual)) {
+            int i = 0;
+            while(i < expected.length() && i < actual.length() && expected.charAt(i) == actual.charAt(i)) {
+                ++i;
+            }
+            System.out.println("Transcripts differ at character " + i + ":");
+            System.out.println("interpreted: " + excerpt(expected, i));
+            System.out.println("compiled:    " + excerpt(actual, i));
+            return false;
+        }
+        if(interpreter.stateHash() != compiled.stateHash()) {
+            System.out.println("Transcripts match, but the final states differ.");
+            return false;
+        }
+        System.out.println("Transcripts and final states match.");
+        return true;
+    }
+    
+    // Plays the script, and returns how long it took in nanoseconds.
+    private static long play(ZMachine z, ScriptIO io) throws ZError {
+        io.setMachine(z);
+        if(!z.init()) {
+            throw new ZError("Couldn't load the story.");
+        }
+        z.setRandomSeed(SEED);
+        long start = System.nanoTime();
+        z.run();
+        return System.nanoTime() - start;
+    }
+    
+    private static String excerpt(String text, int at) {
+        int start = Math.max(0, at - 20);
+        return text.substring(start, Math.min(text.length(), at + 40)).replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,29 @@
+package projectz;
+
+import zmachine.CompiledStory;
+import zmachine.QuetzalSaver;
+import zmachine.ZError;
+import zmachine.ZIO;
+import zmachine.ZMachine;
+import java.io.IOException;
+
+/**
+ * The entry point of a jar written by CompileStory: plays the story
+ * compiled into it on the terminal, as ProjectZ would.
+ */
+public class CompiledGame {
+    public static void main(String[] args) throws ZError, IOException {
+        ZIO io = new TextIO();
+        ZMachine z = new CompiledStory(io, CompiledGame.class.getClassLoader());
+        if(ZMachine.UNDO) {
+            z.enableUndo(ZMachine.UNDO_TURNS, ZMachine.UNDO_BYTES);
+        }
+        if(!z.init()) {
+            io.outputLine("There's no story in this jar.");
+            return;
+        }
+        z.run();
+        QuetzalSaver.commitPending();
+        io.outputLine("Completed execution.");
+    }
+}
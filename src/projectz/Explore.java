@@ -0,0 +1,19 @@
+package projectz;
+
+import zmachine.Explorer;
+import zmachine.ZError;
+import java.io.File;
+
+/**
+ * Explores a story from the command line and prints what it found.
+ * Arguments: story [depth [states [threads]]]
+ */
+public class Explore {
+    public static void main(String[] args) throws ZError, InterruptedException {
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int states = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        Explorer explorer = new Explorer(new File(args[0]), threads);
+        System.out.println(explorer.explore(depth, states));
+    }
+}
@@ -0,0 +1,268 @@
+package projectz;
+
+import zmachine.SaveTarget;
+import zmachine.ZIO;
+import zmachine.ZMachine;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One player's connection to a ZServer, and the ZIO of the machine playing
+ * for them. The selector thread reads lines off the socket into a queue
+ * here, and a machine only runs when there's a line for it to read, so a
+ * read never waits. Everything the machine prints goes into an
+ * OutputQueue, which the selector thread writes out. If the queue fills
+ * and pauses the machine, the session stalls until it has drained. Saves
+ * are kept in memory for as long as the connection lasts.
+ *
+ * The input buffer is only touched by the selector thread. Everything else
+ * is shared with whichever worker is running the machine, and guarded by
+ * the NetIO's lock.
+ */
+public class NetIO implements ZIO, SaveTarget {
+    // Longer lines are cut up.
+    public static final int MAX_LINE = 256;
+    // The socket isn't read while this many lines are waiting.
+    public static final int MAX_QUEUED = 16;
+    
+    final SocketChannel channel;
+    SelectionKey key;
+    // Leased on the first turn, and given back when the session ends.
+    ZMachine machine;
+    private final ByteBuffer input = ByteBuffer.allocateDirect(MAX_LINE);
+    private ArrayDeque<String> lines = new ArrayDeque<String>();
+    // The line for the turn being played.
+    private String line;
+    private final OutputQueue output;
+    private ByteBuffer save;
+    // Set while a turn is waiting for a worker or being played.
+    private boolean busy = true;
+    // Set when the story has ended; the connection closes once its output
+    // has been written.
+    private boolean ending;
+    // Set when the connection has gone.
+    private boolean closed;
+    // Set while the machine is paused for the output queue to drain.
+    private boolean stalled;
+    
+    NetIO(SocketChannel channel, OutputQueue output) {
+        this.channel = channel;
+        this.output = output;
+    }
+    
+    // Reads whatever has arrived. Returns false if the connection has
+    // closed. Whole lines are queued; the caller finds out whether a turn
+    // needs playing from takeTurn().
+    boolean read() throws IOException {
+        if(this.channel.read(this.input) < 0) {
+            return false;
+        }
+        int start = 0;
+        int end = this.input.position();
+        for(int i = 0; i < end; ++i) {
+            if(this.input.get(i) == '\n' || i - start + 1 == MAX_LINE) {
+                int length = this.input.get(i) == '\n' ? i - start : i - start + 1;
+                if(length > 0 && this.input.get(start + length - 1) == '\r') {
+                    --length;
+                }
+                byte[] bytes = new byte[length];
+                for(int n = 0; n < length; ++n) {
+                    bytes[n] = this.input.get(start + n);
+                }
+                synchronized(this) {
+                    this.lines.addLast(new String(bytes, "UTF-8"));
+                }
+                start = i + 1;
+            }
+        }
+        this.input.flip();
+        this.input.position(start);
+        this.input.compact();
+        return true;
+    }
+    
+    // Writes out as much of the output as the socket will take.
+    synchronized void write() throws IOException {
+        this.output.write(this.channel);
+    }
+    
+    // Marks the session busy if it has a turn to play (or a stalled one to
+    // carry on) and isn't already playing one. Returns true if the caller
+    // should hand it to a worker.
+    synchronized boolean takeTurn() {
+        if(this.busy || this.closed || this.ending) {
+            return false;
+        }
+        if(this.stalled ? !this.output.hasDrained() : this.lines.isEmpty()) {
+            return false;
+        }
+        this.busy = true;
+        return true;
+    }
+    
+    // Called by the worker after its machine paused for the output queue.
+    synchronized void stall() {
+        if(this.closed) {
+            return;
+        }
+        this.stalled = true;
+        this.output.stalled();
+    }
+    
+    // Returns true if the worker should carry on with a stalled turn
+    // rather than start a new one.
+    synchronized boolean resume() {
+        if(!this.stalled) {
+            return false;
+        }
+        this.stalled = false;
+        this.output.resumed();
+        return true;
+    }
+    
+    // Takes the line for the next turn, or returns null if there isn't one.
+    synchronized String nextLine() {
+        if(this.closed || this.ending) {
+            return null;
+        }
+        this.line = this.lines.pollFirst();
+        return this.line;
+    }
+    
+    // Called by the worker after a turn. Returns true if the session
+    // should go straight on to another turn.
+    synchronized boolean endTurn() {
+        if(!this.closed && !this.ending && !this.stalled && !this.lines.isEmpty()) {
+            return true;
+        }
+        this.busy = false;
+        return false;
+    }
+    
+    // The story has ended.
+    synchronized void end() {
+        this.ending = true;
+    }
+    
+    /**
+     * The connection has gone. Stops the machine if it's running. Returns
+     * true if the caller should hand the session to a worker, to give its
+     * machine back.
+     */
+    synchronized boolean close() {
+        this.closed = true;
+        this.output.clear();
+        this.stalled = false;
+        if(this.busy) {
+            if(this.machine != null) {
+                this.machine.stop();
+            }
+            return false;
+        }
+        this.busy = this.machine != null;
+        return this.busy;
+    }
+    
+    synchronized boolean isOpen() {
+        return !this.closed && !this.ending;
+    }
+    
+    // Whether the session is over, with all its output written.
+    synchronized boolean isFinished() {
+        return this.closed || (this.ending && !this.busy && this.output.size() == 0);
+    }
+    
+    // The operations the selector should wait for.
+    synchronized int interest() {
+        int ops = 0;
+        if(!this.ending && this.lines.size() < MAX_QUEUED) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if(this.output.size() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+    
+    private synchronized void output(String text) {
+        if(this.closed) {
+            return;
+        }
+        if(!this.output.put(OutputQueue.encode(text.replace("\n", "\r\n"))) && this.machine != null) {
+            this.machine.pause();
+        }
+    }
+    
+    @Override
+    public void outputString(String text) {
+        this.output(text);
+    }
+    
+    @Override
+    public void outputLine(String line) {
+        this.output(line + "\n");
+    }
+    
+    @Override
+    public void outputComment(String comment) {
+        this.outputLine(comment);
+    }
+    
+    // The turn's line, the first time the machine asks. Asking again in the
+    // same turn ends the session, as there's nothing more to give it.
+    @Override
+    public synchronized String readLine() {
+        String line = this.line;
+        this.line = null;
+        if(line == null && this.machine != null) {
+            this.machine.stop();
+        }
+        return line;
+    }
+    
+    @Override
+    public File chooseFile(String prompt, int type) {
+        // Players don't get to choose files on the server.
+        return null;
+    }
+    
+    @Override
+    public boolean confirm(String question) {
+        return false;
+    }
+    
+    @Override
+    public synchronized boolean saveBytes(ByteBuffer save) {
+        this.save = save.duplicate();
+        return true;
+    }
+    
+    @Override
+    public synchronized ByteBuffer restoreBytes() {
+        return this.save == null ? null : this.save.duplicate();
+    }
+    
+    @Override
+    public void splitWindow(int lines) {
+        // Unimplemented.
+    }
+    
+    @Override
+    public void setWindow(int win) {
+        // Unimplemented.
+    }
+    
+    @Override
+    public void reset() {
+        // Unimplemented.
+    }
+    
+    @Override
+    public void setStatus(String place, int a, int b, int type) {
+        // Unimplemented.
+    }
+}
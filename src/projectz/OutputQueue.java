@@ -0,0 +1,256 @@
+package projectz;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The output a NetIO has waiting to be written to its socket, in a direct
+ * buffer, with a limit on how much can wait. What happens when a story
+ * prints more than that depends on the policy:
+ *
+ * PAUSE stops the machine after the instruction doing the printing (so the
+ * limit can be overshot by one print), and starts it again once the queue
+ * has drained to half the limit. Nothing is lost, but a slow client's
+ * story runs at the client's pace.
+ *
+ * DROP throws away whatever doesn't fit, until there's room again.
+ *
+ * COLLAPSE throws away what's still waiting instead, leaving a note of how
+ * much went, so the client gets the latest output (usually the prompt).
+ *
+ * Not thread-safe; NetIO's lock guards it. Each queue keeps its own
+ * figures, and adds them to the server's Totals as well.
+ */
+public class OutputQueue {
+    public static final int PAUSE = 0;
+    public static final int DROP = 1;
+    public static final int COLLAPSE = 2;
+    public static final String[] POLICIES = { "pause", "drop", "collapse" };
+    private static final int INITIAL_SIZE = 4096;
+    
+    private final int limit;
+    private final int policy;
+    private final Totals totals;
+    private ByteBuffer buffer;
+    private int deepest;
+    private long dropped;
+    private int collapses;
+    private int stalls;
+    private long stallTime;
+    private long stalledAt = -1;
+    // The note left by the last collapse, while none of it has been
+    // written: its length at the front of the buffer, and how many bytes
+    // it says were skipped.
+    private int noteLength;
+    private long noteSkipped;
+    
+    /**
+     * Figures for every queue on a server. Queue depths are in bytes, stall
+     * times in nanoseconds.
+     */
+    public static class Totals {
+        private AtomicLong queued = new AtomicLong();
+        private AtomicLong deepest = new AtomicLong();
+        private AtomicLong dropped = new AtomicLong();
+        private AtomicLong collapses = new AtomicLong();
+        private AtomicLong stalls = new AtomicLong();
+        private AtomicLong stalled = new AtomicLong();
+        private AtomicLong stallTime = new AtomicLong();
+        
+        private void depth(int depth) {
+            long deepest;
+            while(depth > (deepest = this.deepest.get()) && !this.deepest.compareAndSet(deepest, depth)) {
+                // Someone else got there first; try again.
+            }
+        }
+        
+        // Bytes waiting in every queue now.
+        public long getQueued() {
+            return this.queued.get();
+        }
+        
+        // The most any one queue has had waiting.
+        public long getDeepest() {
+            return this.deepest.get();
+        }
+        
+        public long getDropped() {
+            return this.dropped.get();
+        }
+        
+        public long getCollapses() {
+            return this.collapses.get();
+        }
+        
+        public long getStalls() {
+            return this.stalls.get();
+        }
+        
+        // Machines paused for their queues now.
+        public long getStalled() {
+            return this.stalled.get();
+        }
+        
+        // Total time machines have spent paused, not counting stalls still
+        // going on.
+        public long getStallTime() {
+            return this.stallTime.get();
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d bytes queued (deepest %d), %d stalls (%d now) for %.1f ms, %d bytes dropped, %d collapses",
+                    this.queued.get(), this.deepest.get(), this.stalls.get(), this.stalled.get(),
+                    this.stallTime.get() / 1e6, this.dropped.get(), this.collapses.get());
+        }
+    }
+    
+    public OutputQueue(int limit, int policy, Totals totals) {
+        this.limit = limit;
+        this.policy = policy;
+        this.totals = totals;
+        this.buffer = ByteBuffer.allocateDirect(Math.min(limit, INITIAL_SIZE));
+    }
+    
+    /**
+     * Queues bytes, as the policy allows. Returns false if the queue is
+     * full and the policy is PAUSE, so the machine should be paused.
+     */
+    boolean put(byte[] bytes) {
+        int offset = 0;
+        int length = bytes.length;
+        if(this.policy == DROP && length > this.limit - this.size()) {
+            int fits = Math.max(0, this.limit - this.size());
+            this.drop(length - fits);
+            length = fits;
+        } else if(this.policy == COLLAPSE && length > this.limit - this.size()) {
+            // The newest output goes in, or as much of the end of it as
+            // fits in half the queue. If the last note hasn't gone yet,
+            // the new one counts what it did as well.
+            if(length > this.limit / 2) {
+                offset = length - this.limit / 2;
+                length = this.limit / 2;
+            }
+            int skipped = this.size() - this.noteLength + offset;
+            this.totals.queued.addAndGet(-this.size());
+            this.buffer.clear();
+            this.drop(skipped);
+            this.noteSkipped += skipped;
+            byte[] note = encode(String.format("[%d bytes of output skipped]\r\n", this.noteSkipped));
+            this.noteLength = note.length;
+            ++this.collapses;
+            this.totals.collapses.incrementAndGet();
+            this.add(note, 0, note.length);
+        }
+        this.add(bytes, offset, length);
+        return this.policy != PAUSE || this.size() < this.limit;
+    }
+    
+    private void add(byte[] bytes, int offset, int length) {
+        if(length > this.buffer.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(this.buffer.capacity() * 2, this.size() + length));
+            this.buffer.flip();
+            larger.put(this.buffer);
+            this.buffer = larger;
+        }
+        this.buffer.put(bytes, offset, length);
+        this.totals.queued.addAndGet(length);
+        if(this.size() > this.deepest) {
+            this.deepest = this.size();
+            this.totals.depth(this.deepest);
+        }
+    }
+    
+    private void drop(int length) {
+        this.dropped += length;
+        this.totals.dropped.addAndGet(length);
+    }
+    
+    static byte[] encode(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    // Writes out as much as the socket will take.
+    void write(SocketChannel channel) throws IOException {
+        this.buffer.flip();
+        int written = channel.write(this.buffer);
+        this.buffer.compact();
+        this.totals.queued.addAndGet(-written);
+        if(written > 0) {
+            this.noteLength = 0;
+            this.noteSkipped = 0;
+        }
+    }
+    
+    // Empties the queue, when the connection has gone.
+    void clear() {
+        this.totals.queued.addAndGet(-this.size());
+        this.buffer.clear();
+        this.noteLength = 0;
+        this.noteSkipped = 0;
+        if(this.stalledAt >= 0) {
+            this.resumed();
+        }
+    }
+    
+    // Bytes waiting to be written.
+    public int size() {
+        return this.buffer.position();
+    }
+    
+    // Whether a paused machine can carry on.
+    boolean hasDrained() {
+        return this.size() <= this.limit / 2;
+    }
+    
+    // Called when the machine has been paused for the queue.
+    void stalled() {
+        this.stalledAt = System.nanoTime();
+        ++this.stalls;
+        this.totals.stalls.incrementAndGet();
+        this.totals.stalled.incrementAndGet();
+    }
+    
+    // Called when the machine carries on.
+    void resumed() {
+        long time = System.nanoTime() - this.stalledAt;
+        this.stalledAt = -1;
+        this.stallTime += time;
+        this.totals.stallTime.addAndGet(time);
+        this.totals.stalled.decrementAndGet();
+    }
+    
+    public int getDeepest() {
+        return this.deepest;
+    }
+    
+    public long getDropped() {
+        return this.dropped;
+    }
+    
+    public int getCollapses() {
+        return this.collapses;
+    }
+    
+    public int getStalls() {
+        return this.stalls;
+    }
+    
+    public long getStallTime() {
+        return this.stallTime;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%s: %d of %d bytes queued (deepest %d), %d stalls for %.1f ms, %d bytes dropped, %d collapses",
+                POLICIES[this.policy], this.size(), this.limit, this.deepest, this.stalls, this.stallTime / 1e6,
+                this.dropped, this.collapses);
+    }
+}
@@ -0,0 +1,112 @@
+package projectz;
+
+import zmachine.Profile;
+import zmachine.ZError;
+import zmachine.ZMachine;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Plays a script of input lines through a story with the Profile on, and
+ * prints the commonest opcodes, pairs and triples. Then times the script
+ * with the plain interpreter, with decoded instructions, with the default
+ * pairs linked but run one instruction at a time, with the default pairs
+ * run by their handlers, with the commonest pairs from the profile fused
+ * as well, and as threaded code, checking that they all print the same
+ * thing every time. Threaded
+ * code is first run in shadow mode, so each of its instructions is checked
+ * against the interpreter.
+ * Arguments: story script [entries [runs]]
+ */
+public class ProfileStory {
+    private static final long SEED = 42;
+    private static final int PLAIN = 0;
+    private static final int DECODED = 1;
+    private static final int LINKED = 2;
+    private static final int FUSED = 3;
+    private static final int PROFILED = 4;
+    private static final int THREADED = 5;
+    private static final int SHADOW = 6;
+    private static final String[] MODES = { "interpreted", "decoded", "linked", "fused", "profiled", "threaded", "shadow" };
+    
+    public static void main(String[] args) throws ZError, IOException {
+        File story = new File(args[0]);
+        List<String> script = ScriptIO.read(new File(args[1]));
+        int entries = args.length > 2 ? Integer.parseInt(args[2]) : 15;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        
+        ZMachine z = play(story, script, FUSED, null, true).getMachine();
+        Profile profile = z.getProfile();
+        System.out.print(profile.report(entries));
+        System.out.println(z.getSuperinstructions());
+        int[][] pairs = profile.getTopPairs(entries);
+        
+        // Count the dispatches each mode saves, checking it prints the same
+        // as the interpreter. Then time the modes in turn, so that they all
+        // gain the same from the JVM warming up.
+        String expected = play(story, script, PLAIN, pairs, false).getTranscript();
+        long[] fused = new long[MODES.length];
+        for(int mode = PLAIN; mode <= SHADOW; ++mode) {
+            // Threaded code doesn't go past the profile.
+            ScriptIO io = play(story, script, mode, pairs, mode < THREADED);
+            check(expected, io, mode);
+            if(mode < THREADED) {
+                fused[mode] = io.getMachine().getProfile().getFused();
+            } else if(mode == SHADOW) {
+                System.out.println(io.getMachine().getThreaded());
+            }
+        }
+        long[] best = new long[MODES.length];
+        Arrays.fill(best, Long.MAX_VALUE);
+        for(int run = 0; run < runs; ++run) {
+            for(int mode = PLAIN; mode <= THREADED; ++mode) {
+                long time = System.nanoTime();
+                ScriptIO io = play(story, script, mode, pairs, false);
+                best[mode] = Math.min(best[mode], System.nanoTime() - time);
+                // Pairs only run by their handlers when not profiled.
+                check(expected, io, mode);
+            }
+        }
+        for(int mode = PLAIN; mode <= PROFILED; ++mode) {
+            System.out.println(String.format("%-12s %8.1f ms, %5.2f%% of dispatches saved", MODES[mode], best[mode] / 1e6,
+                    100.0 * fused[mode] / Math.max(1, profile.getInstructions())));
+        }
+        System.out.println(String.format("%-12s %8.1f ms", MODES[THREADED], best[THREADED] / 1e6));
+    }
+    
+    private static void check(String expected, ScriptIO io, int mode) {
+        if(!expected.equals(io.getTranscript())) {
+            System.out.println("The " + MODES[mode] + " transcript differs from the interpreter's.");
+            System.exit(1);
+        }
+    }
+    
+    // Plays the script in the given mode, and returns the finished IO.
+    private static ScriptIO play(File story, List<String> script, int mode, int[][] pairs, boolean profile) throws ZError {
+        ScriptIO io = new ScriptIO(script);
+        ZMachine z = new ZMachine(io, story);
+        io.setMachine(z);
+        if(!z.init()) {
+            throw new ZError("Couldn't load the story.");
+        }
+        z.setRandomSeed(SEED);
+        if(mode >= THREADED) {
+            z.enableThreaded(mode == SHADOW);
+        } else if(mode != PLAIN) {
+            z.enableSuperinstructions(mode != DECODED);
+            z.getSuperinstructions().setPairs(mode != LINKED);
+        }
+        if(mode == PROFILED) {
+            for(int[] pair : pairs) {
+                z.getSuperinstructions().fuse(pair[0], pair[1]);
+            }
+        }
+        if(profile) {
+            z.enableProfile();
+        }
+        z.run();
+        return io;
+    }
+}
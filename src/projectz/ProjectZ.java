@@ -7,7 +7,10 @@ package projectz;
 import zmachine.ZError;
 import zmachine.ZIO;
 import zmachine.ZMachine;
+import zmachine.QuetzalSaver;
+import zmachine.Journal;
 import java.io.File;
+import java.io.IOException;
 
 /**
  *
@@ -16,13 +19,24 @@ import java.io.File;
 public class ProjectZ {
 
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments: the story, and optionally a
+     * journal to pick the session up from and carry on recording to.
      */
-    public static void main(String[] args) throws ZError {
+    public static void main(String[] args) throws ZError, IOException {
         ZIO io = new TextIO();
         ZMachine z = new ZMachine(io, new File(args[0]));
-        z.init();
-        z.run();
+        if(ZMachine.UNDO) {
+            z.enableUndo(ZMachine.UNDO_TURNS, ZMachine.UNDO_BYTES);
+        }
+        if(args.length > 1) {
+            Journal journal = new Journal(new File(args[1]));
+            journal.resume(z);
+            journal.close();
+        } else {
+            z.init();
+            z.run();
+        }
+        QuetzalSaver.commitPending();
         io.outputLine("Completed execution.");
     }
 }
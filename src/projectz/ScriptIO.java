@@ -0,0 +1,115 @@
+package projectz;
+
+import zmachine.ZIO;
+import zmachine.ZMachine;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Plays a fixed list of input lines and records everything the story
+ * prints, so that two runs can be compared. The machine is stopped when
+ * the script runs out.
+ */
+public class ScriptIO implements ZIO {
+    private Iterator<String> script;
+    private StringBuilder transcript = new StringBuilder();
+    private ZMachine machine;
+    
+    public ScriptIO(List<String> script) {
+        this.script = script.iterator();
+    }
+    
+    // Reads a script, one input line per line.
+    public static List<String> read(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+    
+    public void setMachine(ZMachine machine) {
+        this.machine = machine;
+    }
+    
+    public ZMachine getMachine() {
+        return this.machine;
+    }
+    
+    public String getTranscript() {
+        return this.transcript.toString();
+    }
+    
+    @Override
+    public void outputString(String text) {
+        this.transcript.append(text);
+    }
+    
+    @Override
+    public void outputLine(String line) {
+        this.transcript.append(line).append('\n');
+    }
+    
+    @Override
+    public void outputComment(String comment) {
+        this.outputLine(comment);
+    }
+    
+    @Override
+    public String readLine() {
+        if(!this.script.hasNext()) {
+            if(this.machine != null) {
+                this.machine.stop();
+            }
+            return null;
+        }
+        String line = this.script.next();
+        this.transcript.append(line).append('\n');
+        return line;
+    }
+    
+    @Override
+    public File chooseFile(String prompt, int type) {
+        this.outputString(prompt + ": ");
+        String name = this.readLine();
+        return name == null ? null : new File(name);
+    }
+    
+    @Override
+    public boolean confirm(String question) {
+        this.outputString("\n" + question + " ('yes' or 'no')");
+        return "yes".equals(this.readLine());
+    }
+    
+    @Override
+    public void splitWindow(int lines) {
+        // Unimplemented.
+    }
+    
+    @Override
+    public void setWindow(int win) {
+        // Unimplemented.
+    }
+    
+    @Override
+    public void reset() {
+        // Unimplemented.
+    }
+    
+    @Override
+    public void setStatus(String place, int a, int b, int type) {
+        // Unimplemented.
+    }
+}
@@ -0,0 +1,136 @@
+package projectz;
+
+import zmachine.ZError;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts a ZServer, connects the given number of clients to it at once and
+ * plays the same script through every one of them. A client sends its next
+ * line when the output so far ends in the prompt, and the last line should
+ * end the story. Prints how long they all took, the mean and worst time
+ * from a line going out to the next prompt, and the server's counters.
+ * Every client should see the same transcript; if they don't, each
+ * different one is printed and the exit status is 1.
+ * Arguments: story script clients [threads]
+ * For example, check/ops.z3 check/load.txt 5000.
+ */
+public class ServerLoad {
+    // Clients still playing after this long, in milliseconds, are given up on.
+    private static final long TIMEOUT = 120000;
+    
+    private static class Client {
+        SocketChannel channel;
+        ByteArrayOutputStream transcript = new ByteArrayOutputStream();
+        int next = 0;
+        long sent = 0;
+    }
+    
+    public static void main(String[] args) throws ZError, IOException, InterruptedException {
+        File story = new File(args[0]);
+        List<String> script = ScriptIO.read(new File(args[1]));
+        int count = Integer.parseInt(args[2]);
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        ZServer server = new ZServer(story, 0, threads);
+        Thread serverThread = new Thread(server, "ZServer");
+        serverThread.start();
+        
+        long start = System.nanoTime();
+        Selector selector = Selector.open();
+        List<Client> clients = new ArrayList<Client>();
+        for(int i = 0; i < count; ++i) {
+            Client client = new Client();
+            client.channel = SocketChannel.open();
+            client.channel.configureBlocking(false);
+            client.channel.connect(new InetSocketAddress("127.0.0.1", server.getPort()));
+            client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+            clients.add(client);
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        int finished = 0;
+        long turns = 0;
+        long latency = 0;
+        long worst = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while(finished < count && System.currentTimeMillis() < deadline) {
+            selector.select(1000);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Client client = (Client)key.attachment();
+                if(key.isConnectable()) {
+                    client.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    continue;
+                }
+                buffer.clear();
+                int read;
+                try {
+                    read = client.channel.read(buffer);
+                } catch(IOException e) {
+                    read = -1;
+                }
+                if(read < 0) {
+                    // The server closes the connection when the story ends.
+                    ++finished;
+                    key.cancel();
+                    client.channel.close();
+                    continue;
+                }
+                client.transcript.write(buffer.array(), 0, read);
+                if(read == 0 || buffer.get(read - 1) != '>' || client.next >= script.size()) {
+                    continue;
+                }
+                if(client.sent != 0) {
+                    long time = System.nanoTime() - client.sent;
+                    latency += time;
+                    worst = Math.max(worst, time);
+                    ++turns;
+                }
+                String line = script.get(client.next++);
+                client.transcript.write((line + "\n").getBytes("UTF-8"));
+                ByteBuffer out = ByteBuffer.wrap((line + "\r\n").getBytes("UTF-8"));
+                while(out.hasRemaining()) {
+                    client.channel.write(out);
+                }
+                client.sent = System.nanoTime();
+            }
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        
+        Map<String, Integer> transcripts = new HashMap<String, Integer>();
+        for(Client client : clients) {
+            String transcript = client.transcript.toString("UTF-8");
+            Integer seen = transcripts.get(transcript);
+            transcripts.put(transcript, seen == null ? 1 : seen + 1);
+        }
+        System.out.println(String.format("%d of %d clients finished in %d ms, %d distinct transcripts",
+                finished, count, elapsed, transcripts.size()));
+        System.out.println(String.format("%d turns, mean latency %.2f ms, worst %.2f ms",
+                turns, latency / Math.max(1, turns) / 1e6, worst / 1e6));
+        System.out.println(server);
+        boolean ok = finished == count && transcripts.size() == 1;
+        if(!ok) {
+            for(Map.Entry<String, Integer> transcript : transcripts.entrySet()) {
+                System.out.println("---- " + transcript.getValue() + " clients saw:");
+                System.out.println(transcript.getKey().replace("\r", ""));
+            }
+        }
+        server.close();
+        serverThread.join();
+        System.exit(ok ? 0 : 1);
+    }
+}
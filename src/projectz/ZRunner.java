@@ -6,6 +6,7 @@ package projectz;
 
 import zmachine.ZIO;
 import zmachine.ZMachine;
+import zmachine.QuetzalSaver;
 import zmachine.ZError;
 
 import java.io.File;
@@ -26,7 +27,11 @@ public class ZRunner extends Thread {
     public void run() {
         try {
             z.init();
+            if(ZMachine.UNDO) {
+                z.enableUndo(ZMachine.UNDO_TURNS, ZMachine.UNDO_BYTES);
+            }
             z.run();
+            QuetzalSaver.commitPending();
         } catch(ZError e) {
             io.outputComment("\nError: " + e.getMessage());
         }
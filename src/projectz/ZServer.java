@@ -0,0 +1,324 @@
+package projectz;
+
+import zmachine.MachinePool;
+import zmachine.ZError;
+import zmachine.ZMachine;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plays a story to anyone who connects, one line of input at a time. Every
+ * connection gets its own machine from a MachinePool, already through the
+ * introduction, and its own NetIO.
+ *
+ * All the socket work is done by one thread with a Selector, and the
+ * sockets never block. Machines are run by a few worker threads: when a
+ * line arrives the session is handed to a worker, which plays the turn up
+ * to the story's next read and hands the session back to the selector
+ * thread to write out what it printed.
+ *
+ * Each session can only have so much output waiting to be written (see
+ * OutputQueue), so a slow client can't make the server hold on to
+ * everything its story prints. By default its machine is paused until
+ * the client catches up, which only holds up that client.
+ * Arguments: story port [threads [output limit [pause|drop|collapse]]]
+ */
+public class ZServer implements Runnable {
+    // Machines kept for sessions to come.
+    public static final int MAX_IDLE = 64;
+    public static final int OUTPUT_LIMIT = 65536;
+    // How often main() reports on the server, in milliseconds.
+    public static final int REPORT_INTERVAL = 60000;
+    
+    private MachinePool pool;
+    private ExecutorService workers;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private int outputLimit;
+    private int outputPolicy;
+    private OutputQueue.Totals output = new OutputQueue.Totals();
+    // Sessions a worker has finished with, waiting for the selector thread.
+    private ConcurrentLinkedQueue<NetIO> changed = new ConcurrentLinkedQueue<NetIO>();
+    private volatile boolean running = true;
+    private AtomicInteger open = new AtomicInteger();
+    private AtomicInteger sessions = new AtomicInteger();
+    private AtomicLong turns = new AtomicLong();
+    
+    public ZServer(File story, int port, int threads) throws ZError, IOException {
+        this(story, port, threads, OUTPUT_LIMIT, OutputQueue.PAUSE);
+    }
+    
+    /**
+     * Listens on port, or any free port if it's 0. Each session can have
+     * outputLimit bytes waiting to be written; outputPolicy (from
+     * OutputQueue) says what happens to the rest.
+     */
+    public ZServer(File story, int port, int threads, int outputLimit, int outputPolicy) throws ZError, IOException {
+        this.outputLimit = outputLimit;
+        this.outputPolicy = outputPolicy;
+        this.pool = new MachinePool(story, MAX_IDLE, true);
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.socket().setReuseAddress(true);
+        this.server.socket().bind(new InetSocketAddress(port), 1024);
+        this.server.configureBlocking(false);
+        this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+    }
+    
+    public int getPort() {
+        return this.server.socket().getLocalPort();
+    }
+    
+    // Runs the selector until close() is called.
+    @Override
+    public void run() {
+        try {
+            while(this.running) {
+                this.selector.select();
+                NetIO session;
+                while((session = this.changed.poll()) != null) {
+                    // Its output may have drained while it was stalling.
+                    if(session.takeTurn()) {
+                        this.play(session);
+                    }
+                    this.update(session);
+                }
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+                    session = (NetIO)key.attachment();
+                    try {
+                        if(key.isReadable() && !session.read()) {
+                            this.disconnect(session);
+                            continue;
+                        }
+                        if(key.isWritable()) {
+                            session.write();
+                        }
+                    } catch(IOException e) {
+                        this.disconnect(session);
+                        continue;
+                    }
+                    if(session.takeTurn()) {
+                        this.play(session);
+                    }
+                    this.update(session);
+                }
+            }
+        } catch(IOException e) {
+            Logger.getLogger(ZServer.class.getName()).log(Level.SEVERE, null, e);
+        } finally {
+            this.shutDown();
+        }
+    }
+    
+    public void close() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+    
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = this.server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            NetIO session = new NetIO(channel, new OutputQueue(this.outputLimit, this.outputPolicy, this.output));
+            // Nothing to wait for until the first turn has leased a machine
+            // and played back the introduction.
+            session.key = channel.register(this.selector, 0, session);
+            this.open.incrementAndGet();
+            this.sessions.incrementAndGet();
+            this.play(session);
+        }
+    }
+    
+    // Closes the connection if the session's over, and otherwise waits for
+    // whatever it needs.
+    private void update(NetIO session) {
+        if(!session.key.isValid()) {
+            return;
+        }
+        if(session.isFinished()) {
+            this.disconnect(session);
+        } else {
+            session.key.interestOps(session.interest());
+        }
+    }
+    
+    private void disconnect(NetIO session) {
+        if(session.key.isValid()) {
+            session.key.cancel();
+            this.open.decrementAndGet();
+        }
+        try {
+            session.channel.close();
+        } catch(IOException e) {
+            // It's gone either way.
+        }
+        if(session.close()) {
+            this.play(session);
+        }
+    }
+    
+    // Hands the session to a worker.
+    private void play(final NetIO session) {
+        this.workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                ZServer.this.turn(session);
+            }
+        });
+    }
+    
+    // Plays one turn, on a worker: the first leases a machine, and the
+    // last gives it back. A turn that stalls on its output is carried on
+    // later, as a turn of its own. Whatever happens, the session is handed
+    // back, so it never stays busy. Only the worker playing the session
+    // sets its machine, but the selector thread reads it in close(), so it
+    // is set under the session's lock.
+    private void turn(NetIO session) {
+        boolean handled = false;
+        try {
+            try {
+                if(session.machine == null && session.isOpen()) {
+                    ZMachine machine = this.pool.lease(session);
+                    synchronized(session) {
+                        session.machine = machine;
+                    }
+                }
+                boolean playing = session.resume();
+                if(!playing && session.nextLine() != null) {
+                    session.machine.stopAtNextRead();
+                    playing = true;
+                }
+                if(playing) {
+                    session.machine.run();
+                    if(session.machine.isPaused()) {
+                        session.stall();
+                    } else {
+                        this.turns.incrementAndGet();
+                        if(!session.machine.isPausedAtRead()) {
+                            session.end();
+                        }
+                    }
+                }
+            } catch(ZError e) {
+                session.outputComment("\nError: " + e.getMessage());
+                session.end();
+            } catch(RuntimeException e) {
+                // Stories can index off the end of memory and the like.
+                Logger.getLogger(ZServer.class.getName()).log(Level.WARNING, null, e);
+                session.outputComment("\nError: " + e);
+                session.end();
+            }
+            handled = true;
+        } finally {
+            if(!handled) {
+                // An Error, which goes on up to the worker. There's no
+                // telling what state the machine is in, so it isn't given
+                // back to the pool.
+                session.end();
+                synchronized(session) {
+                    session.machine = null;
+                }
+            }
+            this.handBack(session);
+        }
+    }
+    
+    // Gives the machine back if the session is over, and the session back
+    // to the selector thread unless it has another turn to play.
+    private void handBack(NetIO session) {
+        if(!session.isOpen() && session.machine != null) {
+            // Let go of the machine before it goes back to the pool, so that
+            // close() can't stop it once it belongs to someone else.
+            ZMachine machine = session.machine;
+            synchronized(session) {
+                session.machine = null;
+            }
+            try {
+                this.pool.release(machine);
+            } catch(ZError e) {
+                Logger.getLogger(ZServer.class.getName()).log(Level.WARNING, null, e);
+            }
+        }
+        if(session.endTurn()) {
+            this.play(session);
+        } else {
+            this.changed.add(session);
+            this.selector.wakeup();
+        }
+    }
+    
+    private void shutDown() {
+        this.workers.shutdownNow();
+        for(SelectionKey key : this.selector.keys()) {
+            try {
+                key.channel().close();
+            } catch(IOException e) {
+                // Closing anyway.
+            }
+        }
+        try {
+            this.selector.close();
+        } catch(IOException e) {
+            // Closing anyway.
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d connections open, %d sessions, %d turns played, %d machines made; output: %s",
+                this.open.get(), this.sessions.get(), this.turns.get(), this.pool.getCreatedCount(), this.output);
+    }
+    
+    public OutputQueue.Totals getOutputTotals() {
+        return this.output;
+    }
+    
+    public static void main(String[] args) throws ZError, IOException {
+        File story = new File(args[0]);
+        int port = Integer.parseInt(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int limit = args.length > 3 ? Integer.parseInt(args[3]) : OUTPUT_LIMIT;
+        int policy = args.length > 4 ? Arrays.asList(OutputQueue.POLICIES).indexOf(args[4]) : OutputQueue.PAUSE;
+        if(policy < 0) {
+            System.out.println("The output policy must be one of " + Arrays.toString(OutputQueue.POLICIES));
+            System.exit(1);
+        }
+        final ZServer server = new ZServer(story, port, threads, limit, policy);
+        System.out.println("Listening on port " + server.getPort());
+        new Timer(true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                Logger.getLogger(ZServer.class.getName()).log(Level.INFO, server.toString());
+            }
+        }, REPORT_INTERVAL, REPORT_INTERVAL);
+        server.run();
+    }
+}
@@ -19,21 +19,30 @@ import javax.swing.text.StyledDocument;
 import javax.swing.text.Style;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import javax.swing.JScrollBar;
 import javax.swing.JTextField;
 import javax.swing.border.EmptyBorder;
 import javax.swing.KeyStroke;
 import javax.swing.JOptionPane;
 import javax.swing.UIManager;
-import java.awt.event.KeyListener;
+import java.awt.event.KeyAdapter;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.AdjustmentListener;
+import java.awt.event.AdjustmentEvent;
 import java.awt.Toolkit;
 import java.awt.Font;
 import java.awt.Color;
 import java.awt.FileDialog;
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 
 /**
@@ -41,11 +50,36 @@ import java.util.ArrayList;
  * @author katharine
  */
 public class ZUI extends javax.swing.JFrame implements ZIO {
-    private String inputString;
-    private final Object wait = new Object();
+    // The one input line, re-armed for every read. Lines typed into it are
+    // queued for the waiting VM thread without blocking the EDT. inputMarker
+    // is where the field sits in the document while it is armed; other
+    // output can land after it.
+    private JTextField inputField;
+    private boolean inputArmed = false;
+    private Position inputMarker;
+    private final BlockingQueue<String> inputQueue = new LinkedBlockingQueue<String>();
     private ZRunner runner;
     private ArrayList<String> history;
     private int historyPointer = 0;
+    
+    // Output waiting to be written to the document. The VM thread appends
+    // to this and the flush timer drains it on the EDT, so the document is
+    // touched once per style run per frame rather than once per string.
+    private final ArrayList<OutputRun> pendingOutput = new ArrayList<OutputRun>();
+    private javax.swing.Timer flushTimer;
+    public static final int FLUSH_INTERVAL = 16; // milliseconds
+    
+    // The output panel only keeps the most recent SCROLLBACK_LINES lines.
+    // Once it exceeds that by SCROLLBACK_TRIM_BATCH lines, the oldest lines
+    // are cut in one go, and (if SPILL_SCROLLBACK is set) appended to a
+    // spill file as a page that can be read back in when the user scrolls
+    // to the top.
+    public static final int SCROLLBACK_LINES = 2000;
+    public static final int SCROLLBACK_TRIM_BATCH = 500;
+    public static final boolean SPILL_SCROLLBACK = true;
+    private RandomAccessFile spill;
+    private File spillFile;
+    private ArrayList<Long> spillPages = new ArrayList<Long>(); // Start offset of each page.
 
     /** Creates new form ZUI */
     public ZUI() {
@@ -68,6 +102,27 @@ public class ZUI extends javax.swing.JFrame implements ZIO {
         Style score = bar.addStyle("Score", null);
         StyleConstants.setAlignment(score, StyleConstants.ALIGN_RIGHT);
         
+        this.initInputField();
+        
+        // Batch output onto the EDT.
+        this.flushTimer = new javax.swing.Timer(FLUSH_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                flushOutput();
+            }
+        });
+        this.flushTimer.start();
+        
+        // Page spilled scrollback back in when the user hits the top.
+        this.jScrollPane1.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() {
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent e) {
+                JScrollBar bar = jScrollPane1.getVerticalScrollBar();
+                if(!e.getValueIsAdjusting() && bar.getValue() == bar.getMinimum() && !spillPages.isEmpty()) {
+                    pageInScrollback();
+                }
+            }
+        });
         
         this.outputComment("To begin, load a story (File -> Load Story).");
     }
@@ -208,21 +263,17 @@ public class ZUI extends javax.swing.JFrame implements ZIO {
     
     @Override
     public void reset() {
-        try {
-            this.outputPanel.getDocument().remove(0, this.outputPanel.getDocument().getLength());
-        } catch (BadLocationException ex) {
-            Logger.getLogger(ZUI.class.getName()).log(Level.SEVERE, null, ex);
+        synchronized(pendingOutput) {
+            pendingOutput.clear();
         }
-    }
-    
-    protected void addText(final String str, String styleName) {
-        final Style style = outputPanel.getStyledDocument().getStyle(styleName);
         java.awt.EventQueue.invokeLater(new Runnable() {
             @Override
             public void run() {
+                inputArmed = false;
+                inputMarker = null;
+                clearSpill();
                 try {
-                    outputPanel.getDocument().insertString(outputPanel.getDocument().getLength(), str, style);
-                    outputPanel.setCaretPosition(outputPanel.getDocument().getLength());
+                    outputPanel.getDocument().remove(0, outputPanel.getDocument().getLength());
                 } catch (BadLocationException ex) {
                     Logger.getLogger(ZUI.class.getName()).log(Level.SEVERE, null, ex);
                 }
@@ -230,87 +281,273 @@ public class ZUI extends javax.swing.JFrame implements ZIO {
         });
     }
     
+    // Queues text for the next flush. Consecutive text in the same style is
+    // merged into a single run. Safe to call from any thread; never blocks
+    // on the EDT.
+    protected void addText(String str, String styleName) {
+        synchronized(pendingOutput) {
+            OutputRun last = null;
+            if(!pendingOutput.isEmpty()) {
+                last = pendingOutput.get(pendingOutput.size() - 1);
+            }
+            if(last == null || !last.style.equals(styleName)) {
+                last = new OutputRun(styleName);
+                pendingOutput.add(last);
+            }
+            last.text.append(str);
+        }
+    }
+    
+    // Writes all queued output to the document. Must be called on the EDT.
+    protected void flushOutput() {
+        OutputRun[] runs;
+        synchronized(pendingOutput) {
+            if(pendingOutput.isEmpty()) {
+                return;
+            }
+            runs = pendingOutput.toArray(new OutputRun[pendingOutput.size()]);
+            pendingOutput.clear();
+        }
+        StyledDocument doc = outputPanel.getStyledDocument();
+        try {
+            for(OutputRun run : runs) {
+                doc.insertString(doc.getLength(), run.text.toString(), doc.getStyle(run.style));
+            }
+            this.trimScrollback(doc);
+        } catch (BadLocationException ex) {
+            Logger.getLogger(ZUI.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        outputPanel.setCaretPosition(doc.getLength());
+    }
+    
+    // Drops the oldest lines once the document is a full batch over the
+    // limit, spilling them to disk if enabled. Must be called on the EDT.
+    protected void trimScrollback(StyledDocument doc) throws BadLocationException {
+        Element root = doc.getDefaultRootElement();
+        int excess = root.getElementCount() - SCROLLBACK_LINES;
+        if(excess < SCROLLBACK_TRIM_BATCH) {
+            return;
+        }
+        int end = root.getElement(excess - 1).getEndOffset();
+        if(SPILL_SCROLLBACK) {
+            this.spillPage(this.styleRuns(doc, end));
+        }
+        doc.remove(0, end);
+    }
+    
+    // The start of the document up to end, as runs of text in one style.
+    private ArrayList<OutputRun> styleRuns(StyledDocument doc, int end) throws BadLocationException {
+        ArrayList<OutputRun> runs = new ArrayList<OutputRun>();
+        OutputRun last = null;
+        int offset = 0;
+        while(offset < end) {
+            Element element = doc.getCharacterElement(offset);
+            int elementEnd = Math.min(element.getEndOffset(), end);
+            Object style = element.getAttributes().getAttribute(StyleConstants.NameAttribute);
+            if(!(style instanceof String)) {
+                style = "Output";
+            }
+            if(last == null || !last.style.equals(style)) {
+                last = new OutputRun((String)style);
+                runs.add(last);
+            }
+            last.text.append(doc.getText(offset, elementEnd - offset));
+            offset = elementEnd;
+        }
+        return runs;
+    }
+    
+    // A page is a sequence of runs, each written as its style name followed
+    // by the length and bytes of its text.
+    private void spillPage(ArrayList<OutputRun> runs) {
+        try {
+            if(this.spill == null) {
+                this.spillFile = File.createTempFile("projectz", ".scrollback");
+                this.spillFile.deleteOnExit();
+                this.spill = new RandomAccessFile(this.spillFile, "rw");
+            }
+            long start = this.spill.length();
+            this.spill.seek(start);
+            for(OutputRun run : runs) {
+                byte[] text = run.text.toString().getBytes("UTF-8");
+                this.spill.writeUTF(run.style);
+                this.spill.writeInt(text.length);
+                this.spill.write(text);
+            }
+            this.spillPages.add(start);
+        } catch (IOException ex) {
+            // Losing old scrollback is better than keeping it all in memory.
+            Logger.getLogger(ZUI.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+    
+    // Reads the most recently spilled page back in above the current text.
+    // The page leaves the spill file; if it gets trimmed again later it is
+    // simply spilled again. Must be called on the EDT.
+    protected void pageInScrollback() {
+        if(this.spillPages.isEmpty()) {
+            return;
+        }
+        try {
+            long start = this.spillPages.remove(this.spillPages.size() - 1);
+            ArrayList<OutputRun> runs = new ArrayList<OutputRun>();
+            this.spill.seek(start);
+            while(this.spill.getFilePointer() < this.spill.length()) {
+                OutputRun run = new OutputRun(this.spill.readUTF());
+                byte[] text = new byte[this.spill.readInt()];
+                this.spill.readFully(text);
+                run.text.append(new String(text, "UTF-8"));
+                runs.add(run);
+            }
+            this.spill.setLength(start);
+            
+            // Keep the view where it was rather than jumping to the top of
+            // the new page.
+            final JScrollBar bar = jScrollPane1.getVerticalScrollBar();
+            final int fromBottom = bar.getMaximum() - bar.getValue();
+            StyledDocument doc = outputPanel.getStyledDocument();
+            int offset = 0;
+            for(OutputRun run : runs) {
+                doc.insertString(offset, run.text.toString(), doc.getStyle(run.style));
+                offset += run.text.length();
+            }
+            java.awt.EventQueue.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    bar.setValue(bar.getMaximum() - fromBottom);
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(ZUI.class.getName()).log(Level.WARNING, null, ex);
+        } catch (BadLocationException ex) {
+            Logger.getLogger(ZUI.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    private void clearSpill() {
+        this.spillPages.clear();
+        if(this.spill != null) {
+            try {
+                this.spill.setLength(0);
+            } catch (IOException ex) {
+                Logger.getLogger(ZUI.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+    
+    private static class OutputRun {
+        final String style;
+        final StringBuilder text = new StringBuilder();
+        
+        OutputRun(String style) {
+            this.style = style;
+        }
+    }
+    
     
     @Override
     public void outputLine(String str) {
         this.outputString(str + "\n");
     }
     
+    // Builds the input line and its listeners. Called once; readLine only
+    // re-arms it.
+    private void initInputField() {
+        this.inputField = new JTextField();
+        this.inputField.setFont(new Font("Lucida Grande", Font.BOLD, 14));
+        this.inputField.setBorder(new EmptyBorder(0,0,10,0));
+        Style style = this.outputPanel.getStyledDocument().addStyle("InputField", null);
+        StyleConstants.setComponent(style, this.inputField);
+        
+        this.inputField.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if(!inputArmed) {
+                    return;
+                }
+                String input = inputField.getText();
+                disarmInput();
+                addText(input + "\n", "Input");
+                flushOutput();
+                history.add(input);
+                historyPointer = history.size();
+                
+                // The VM thread armed us and is in, or on its way into,
+                // take(). The queue is unbounded, so this never waits.
+                inputQueue.offer(input);
+            }
+        });
+        
+        this.inputField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyReleased(KeyEvent ke) {
+                if(ke.getKeyCode() == KeyEvent.VK_UP) {
+                    if(historyPointer > 0)
+                        inputField.setText(history.get(--historyPointer));
+                } else if(ke.getKeyCode() == KeyEvent.VK_DOWN) {
+                    if(historyPointer < history.size()) {
+                        historyPointer++;
+                        if(historyPointer < history.size())
+                            inputField.setText(history.get(historyPointer));
+                        else
+                            inputField.setText("");
+                    }
+                }
+            }
+        });
+    }
+    
+    // Takes the input field back out of the document, wherever later output
+    // has left it. Must be called on the EDT.
+    private void disarmInput() {
+        if(!this.inputArmed) {
+            return;
+        }
+        this.inputArmed = false;
+        StyledDocument doc = outputPanel.getStyledDocument();
+        try {
+            doc.remove(this.inputMarker.getOffset(), 1);
+        } catch (BadLocationException ex) {
+            Logger.getLogger(ZUI.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        this.inputMarker = null;
+    }
+    
     @Override
     public String readLine() {
-        final ZUI me = this;
         java.awt.EventQueue.invokeLater(new Runnable() {
             @Override
             public void run() {
                 try {
-                    // We want to read some text.
-                    final StyledDocument doc = outputPanel.getStyledDocument();
-                    Style style = doc.addStyle("InputField", null);
-                    final JTextField field = new JTextField();
-                    field.setFont(new Font("Lucida Grande", Font.BOLD, 14));
-                    field.setBorder(new EmptyBorder(0,0,10,0));
-                    StyleConstants.setComponent(style, field);
-                    field.addActionListener(new ActionListener() {
-                        @Override
-                        public void actionPerformed(ActionEvent e) {
-                            synchronized(wait) {
-                                try {
-                                    me.inputString = field.getText();
-                                    
-                                    // Now we cease to be a text box.
-                                    doc.remove(doc.getLength() - 1, 1);
-                                    me.addText(me.inputString + "\n", "Input");
-                                    me.history.add(me.inputString);
-                                    me.historyPointer = me.history.size();
-                                    me.wait.notify();
-                                } catch (BadLocationException ex) {
-                                    Logger.getLogger(ZUI.class.getName()).log(Level.SEVERE, null, ex);
-                                }
-                            }
-                        }
-                    });
-                    
-                    field.addKeyListener(new KeyListener() {
-                        @Override
-                        public void keyTyped(KeyEvent ke) {
-                        }
-
-                        @Override
-                        public void keyPressed(KeyEvent ke) {
-                        }
-
-                        @Override
-                        public void keyReleased(KeyEvent ke) {
-                            if(ke.getKeyCode() == KeyEvent.VK_UP) {
-                                if(historyPointer > 0)
-                                    field.setText(me.history.get(--me.historyPointer));
-                            } else if(ke.getKeyCode() == KeyEvent.VK_DOWN) {
-                                if(historyPointer < me.history.size()) {
-                                    me.historyPointer++;
-                                    if(historyPointer < me.history.size())
-                                        field.setText(me.history.get(me.historyPointer));
-                                    else
-                                        field.setText("");
-                                }
-                            }
-                        }
-                    });
-                    
-                    doc.insertString(doc.getLength(), "?", style);
-                    field.requestFocusInWindow();
+                    // Anything the VM printed before asking for input has to
+                    // land before the input field does.
+                    flushOutput();
+                    StyledDocument doc = outputPanel.getStyledDocument();
+                    inputField.setText("");
+                    int offset = doc.getLength();
+                    doc.insertString(offset, "?", doc.getStyle("InputField"));
+                    inputMarker = doc.createPosition(offset);
+                    inputArmed = true;
+                    inputField.requestFocusInWindow();
                 } catch (BadLocationException ex) {
                     Logger.getLogger(ZUI.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
         });
-        synchronized(wait) {
-           try {
-                wait.wait();
-            } catch (InterruptedException ex) {
-                //
-            }
+        try {
+            return this.inputQueue.take();
+        } catch (InterruptedException ex) {
+            // The runner is being torn down. Nobody will read what is typed
+            // now, so the field must not take it.
+            java.awt.EventQueue.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    disarmInput();
+                    inputQueue.clear();
+                }
+            });
+            return null;
         }
-        return this.inputString;
     }
     
     @Override
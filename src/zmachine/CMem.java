@@ -0,0 +1,132 @@
+package zmachine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Quetzal-style compressed memory deltas. A delta is the XOR of two memory
+ * images, with each run of zero bytes written as a zero followed by the run
+ * length minus one (at most 256 per run). Trailing zeros are left off.
+ * 
+ * Deltas are built a page at a time, so that the encoding of a page can be
+ * kept and reused for as long as the page doesn't change.
+ */
+class CMem {
+    // One page's worth of delta. The zero runs at either end are kept as
+    // counts so that they can be merged with those of the neighbouring
+    // pages when pages are joined up.
+    static class Page {
+        final int leadingZeros;
+        final byte[] body; // Starts and ends with a non-zero byte.
+        final int trailingZeros;
+        
+        Page(int leadingZeros, byte[] body, int trailingZeros) {
+            this.leadingZeros = leadingZeros;
+            this.body = body;
+            this.trailingZeros = trailingZeros;
+        }
+    }
+    
+    // Joins pages (and stretches known to be unchanged) into one delta,
+    // written to out as it goes.
+    static class Writer {
+        private OutputStream out;
+        private int zeros = 0;
+        
+        Writer(OutputStream out) {
+            this.out = out;
+        }
+        
+        void zeros(int count) {
+            this.zeros += count;
+        }
+        
+        void page(Page page) throws IOException {
+            this.zeros += page.leadingZeros;
+            if(page.body.length == 0) {
+                return;
+            }
+            writeRun(this.out, this.zeros);
+            this.out.write(page.body, 0, page.body.length);
+            this.zeros = page.trailingZeros;
+        }
+    }
+    
+    static Page encodePage(short[] from, short[] to) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int leading = -1;
+        int zeros = 0;
+        for(int i = 0; i < to.length; ++i) {
+            int xor = (from[i] ^ to[i]) & 0xFF;
+            if(xor == 0) {
+                ++zeros;
+            } else {
+                if(leading < 0) {
+                    leading = zeros;
+                } else {
+                    writeRun(body, zeros);
+                }
+                zeros = 0;
+                body.write(xor);
+            }
+        }
+        if(leading < 0) {
+            return new Page(to.length, new byte[0], 0);
+        }
+        return new Page(leading, body.toByteArray(), zeros);
+    }
+    
+    // Encodes the difference between two sets of snapshot pages. Pages that
+    // are shared between the two are known to be identical and aren't
+    // compared byte by byte.
+    static byte[] diff(short[][] from, short[][] to) {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        Writer out = new Writer(delta);
+        try {
+            for(int p = 0; p < to.length; ++p) {
+                if(from[p] == to[p]) {
+                    out.zeros(to[p].length);
+                } else {
+                    out.page(encodePage(from[p], to[p]));
+                }
+            }
+        } catch(IOException e) {
+            // Not from a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+        return delta.toByteArray();
+    }
+    
+    static void writeRun(ByteArrayOutputStream out, int zeros) {
+        try {
+            writeRun((OutputStream)out, zeros);
+        } catch(IOException e) {
+            // Not from a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    static void writeRun(OutputStream out, int zeros) throws IOException {
+        while(zeros > 0) {
+            int run = Math.min(zeros, 256);
+            out.write(0);
+            out.write(run - 1);
+            zeros -= run;
+        }
+    }
+    
+    // XORs a delta into the machine's memory.
+    static void apply(byte[] cmem, ZMachine z) {
+        int pointer = 0;
+        for(int i = 0; i < cmem.length; ++i) {
+            int b = cmem[i] & 0xFF;
+            if(b != 0) {
+                z.setByte(pointer, z.getByte(pointer) ^ b);
+                ++pointer;
+            } else {
+                pointer += (cmem[++i] & 0xFF) + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package zmachine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Just enough of a class file writer to build the classes the Jit makes:
+ * one class, a handful of methods, ints and jumps. The classes are version
+ * 49 so that they don't need stack maps.
+ */
+class ClassFile {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+    
+    // The opcodes we use.
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC_W = 0x13;
+    public static final int ILOAD = 0x15;
+    public static final int ALOAD_0 = 0x2a;
+    public static final int ALOAD_1 = 0x2b;
+    public static final int ILOAD_1 = 0x1b;
+    public static final int ILOAD_2 = 0x1c;
+    public static final int ILOAD_3 = 0x1d;
+    public static final int ISTORE = 0x36;
+    public static final int IASTORE = 0x4f;
+    public static final int POP = 0x57;
+    public static final int DUP = 0x59;
+    public static final int DUP_X1 = 0x5a;
+    public static final int IADD = 0x60;
+    public static final int ISUB = 0x64;
+    public static final int IAND = 0x7e;
+    public static final int IINC = 0x84;
+    public static final int I2S = 0x93;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IF_ICMPLT = 0xa1;
+    public static final int GOTO = 0xa7;
+    public static final int RETURN = 0xb1;
+    public static final int GETFIELD = 0xb4;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+    public static final int NEWARRAY = 0xbc;
+    public static final int T_INT = 10;
+    
+    private static final int TAG_UTF8 = 1;
+    private static final int TAG_INTEGER = 3;
+    private static final int TAG_CLASS = 7;
+    private static final int TAG_FIELDREF = 9;
+    private static final int TAG_METHODREF = 10;
+    private static final int TAG_NAME_AND_TYPE = 12;
+    
+    private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private DataOutputStream pool = new DataOutputStream(this.poolBytes);
+    private HashMap<String, Integer> entries = new HashMap<String, Integer>();
+    private int poolCount = 1;
+    private String name;
+    private String superName;
+    private ArrayList<byte[]> methods = new ArrayList<byte[]>();
+    
+    public ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+    
+    // Adds a constant, unless it's already there, and returns its index.
+    private int constant(String key, int tag, Object... parts) {
+        Integer index = this.entries.get(key);
+        if(index != null) {
+            return index;
+        }
+        try {
+            this.pool.writeByte(tag);
+            for(Object part : parts) {
+                if(part instanceof String) {
+                    this.pool.writeUTF((String)part);
+                } else if(tag == TAG_INTEGER) {
+                    this.pool.writeInt((Integer)part);
+                } else {
+                    this.pool.writeShort((Integer)part);
+                }
+            }
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = this.poolCount++;
+        this.entries.put(key, index);
+        return index;
+    }
+    
+    public int utf8(String value) {
+        return this.constant("U" + value, TAG_UTF8, value);
+    }
+    
+    public int integer(int value) {
+        return this.constant("I" + value, TAG_INTEGER, value);
+    }
+    
+    public int classRef(String name) {
+        return this.constant("C" + name, TAG_CLASS, this.utf8(name));
+    }
+    
+    private int nameAndType(String name, String descriptor) {
+        return this.constant("N" + name + " " + descriptor, TAG_NAME_AND_TYPE, this.utf8(name), this.utf8(descriptor));
+    }
+    
+    public int methodRef(String owner, String name, String descriptor) {
+        return this.constant("M" + owner + "." + name + descriptor, TAG_METHODREF,
+                this.classRef(owner), this.nameAndType(name, descriptor));
+    }
+    
+    public int fieldRef(String owner, String name, String descriptor) {
+        return this.constant("F" + owner + "." + name + descriptor, TAG_FIELDREF,
+                this.classRef(owner), this.nameAndType(name, descriptor));
+    }
+    
+    public void addMethod(int access, String name, String descriptor, Code code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(this.utf8(name));
+            out.writeShort(this.utf8(descriptor));
+            out.writeShort(1); // Just the Code attribute
+            byte[] body = code.toByteArray();
+            out.writeShort(this.utf8("Code"));
+            out.writeInt(body.length + 12);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0); // No exception table
+            out.writeShort(0); // No attributes
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        this.methods.add(bytes.toByteArray());
+    }
+    
+    public byte[] toByteArray() {
+        int thisClass = this.classRef(this.name);
+        int superClass = this.classRef(this.superName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(this.poolCount);
+            this.poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // Interfaces
+            out.writeShort(0); // Fields
+            out.writeShort(this.methods.size());
+            for(byte[] method : this.methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // Attributes
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * The body of a method. Jumps go to labels, which can be placed before
+     * or after the jump; they are filled in by toByteArray().
+     */
+    public static class Code {
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private ArrayList<Integer> labels = new ArrayList<Integer>();
+        // Pairs of (offset of the jump instruction, label).
+        private ArrayList<int[]> jumps = new ArrayList<int[]>();
+        private ClassFile owner;
+        int maxStack = 16;
+        int maxLocals;
+        
+        public Code(ClassFile owner, int maxLocals) {
+            this.owner = owner;
+            this.maxLocals = maxLocals;
+        }
+        
+        public int size() {
+            return this.bytes.size();
+        }
+        
+        public int newLabel() {
+            this.labels.add(-1);
+            return this.labels.size() - 1;
+        }
+        
+        public void place(int label) {
+            this.labels.set(label, this.bytes.size());
+        }
+        
+        public void op(int opcode) {
+            this.bytes.write(opcode);
+        }
+        
+        public void op(int opcode, int operand) {
+            this.bytes.write(opcode);
+            this.bytes.write(operand);
+        }
+        
+        private void op16(int opcode, int operand) {
+            this.bytes.write(opcode);
+            this.bytes.write(operand >>> 8);
+            this.bytes.write(operand);
+        }
+        
+        public void jump(int opcode, int label) {
+            this.jumps.add(new int[] { this.bytes.size(), label });
+            this.op16(opcode, 0);
+        }
+        
+        public void pushInt(int value) {
+            if(value >= -1 && value <= 5) {
+                this.op(ICONST_0 + value);
+            } else if(value >= -128 && value <= 127) {
+                this.op(BIPUSH, value & 0xFF);
+            } else if(value >= -32768 && value <= 32767) {
+                this.op16(SIPUSH, value & 0xFFFF);
+            } else {
+                this.op16(LDC_W, this.owner.integer(value));
+            }
+        }
+        
+        public void iload(int slot) {
+            this.op(ILOAD, slot);
+        }
+        
+        public void istore(int slot) {
+            this.op(ISTORE, slot);
+        }
+        
+        public void iinc(int slot, int amount) {
+            this.bytes.write(IINC);
+            this.bytes.write(slot);
+            this.bytes.write(amount);
+        }
+        
+        public void invokeStatic(String owner, String name, String descriptor) {
+            this.op16(INVOKESTATIC, this.owner.methodRef(owner, name, descriptor));
+        }
+        
+        public void invokeSpecial(String owner, String name, String descriptor) {
+            this.op16(INVOKESPECIAL, this.owner.methodRef(owner, name, descriptor));
+        }
+        
+        public void getField(String owner, String name, String descriptor) {
+            this.op16(GETFIELD, this.owner.fieldRef(owner, name, descriptor));
+        }
+        
+        byte[] toByteArray() {
+            byte[] code = this.bytes.toByteArray();
+            for(int[] jump : this.jumps) {
+                int target = this.labels.get(jump[1]);
+                if(target < 0) {
+                    throw new IllegalStateException("Jump to a label that was never placed.");
+                }
+                int offset = target - jump[0];
+                if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Method too long.");
+                }
+                code[jump[0] + 1] = (byte)(offset >>> 8);
+                code[jump[0] + 2] = (byte)offset;
+            }
+            if(code.length > 0xFFFF) {
+                throw new IllegalStateException("Method too long.");
+            }
+            return code;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package zmachine;
+
+/**
+ * A routine translated to JVM bytecode by the Jit. The generated subclass
+ * keeps the routine's locals in JVM locals and its branches as JVM jumps;
+ * anything more involved is done through the static methods here, which
+ * the generated class can reach because it's a subclass.
+ *
+ * run() is called by op_call once the routine's frame is set up, and
+ * leaves pc on the next instruction to execute. Instructions the compiler
+ * doesn't handle itself are run by the interpreter one at a time, with
+ * the locals written back first. If anything unexpected happens (the story
+ * stops, is restored, or leaves the routine some other way) the compiled
+ * code just returns, and the interpreter carries on from wherever pc is.
+ */
+public abstract class CompiledRoutine {
+    public final int address;
+    
+    protected CompiledRoutine(int address) {
+        this.address = address;
+    }
+    
+    public abstract void run(ZMachine z) throws ZError;
+    
+    // Helpers for the generated code. Operands come first and the machine
+    // last, so that generated code can push operands as it decodes them.
+    
+    protected static int getLocal(int local, ZMachine z) {
+        return z.stack[z.framePointer + local - 1];
+    }
+    
+    protected static void setLocal(int value, int local, ZMachine z) {
+        z.stack[z.framePointer + local - 1] = value;
+    }
+    
+    protected static int getVariable(int variable, ZMachine z) throws ZError {
+        return z.getVariable(variable);
+    }
+    
+    protected static void setVariable(int value, int variable, ZMachine z) throws ZError {
+        z.setVariable(variable, value);
+    }
+    
+    protected static void addCount(int count, ZMachine z) {
+        z.opcodesExecuted += count;
+    }
+    
+    // Called on backward jumps once in a while, so that a long loop still
+    // notices the machine being stopped, or running out of steps.
+    protected static boolean safepoint(int count, ZMachine z) {
+        z.opcodesExecuted += count;
+        return z.running && !z.outOfSteps();
+    }
+    
+    protected static void exit(int pc, ZMachine z) throws ZError {
+        z.checkJump(pc);
+        z.pc = pc;
+    }
+    
+    protected static void ret(int value, int count, ZMachine z) throws ZError {
+        z.opcodesExecuted += count;
+        z.returnFromRoutine(value);
+        z.pc++; // Past the store byte, as executeCycle would.
+    }
+    
+    // Runs a call instruction, whose operands end just before pc, and the
+    // routine it calls. Returns false if the story went anywhere other than
+    // back here.
+    protected static boolean call(int[] args, int pc, ZMachine z) throws ZError {
+        int depth = z.frameCount;
+        int generation = z.generation;
+        z.pc = pc;
+        z.op_call(args);
+        ++z.opcodesExecuted;
+        z.pc++;
+        while(z.running && z.frameCount > depth) {
+            z.executeCycle();
+        }
+        return z.running && z.frameCount == depth && z.generation == generation;
+    }
+    
+    // Interprets the single instruction at address. Returns false if it
+    // went anywhere other than next.
+    protected static boolean step(int address, int next, ZMachine z) throws ZError {
+        int depth = z.frameCount;
+        int generation = z.generation;
+        z.pc = address;
+        z.executeCycle(false);
+        return z.running && z.pc == next && z.frameCount == depth && z.generation == generation;
+    }
+    
+    protected static int sign(int value) {
+        if((value & 0x8000) != 0) {
+            return value - 0x10000;
+        }
+        return value;
+    }
+    
+    protected static int add(int a, int b) {
+        return sign(a) + sign(b);
+    }
+    
+    protected static int sub(int a, int b) {
+        return sign(a) - sign(b);
+    }
+    
+    protected static int mul(int a, int b) {
+        return sign(a) * sign(b);
+    }
+    
+    protected static int div(int a, int b) throws ZError {
+        if(b == 0) {
+            throw new StoryError("Division by zero.");
+        }
+        return sign(a) / sign(b);
+    }
+    
+    protected static int or(int a, int b) {
+        return a | b;
+    }
+    
+    protected static int and(int a, int b) {
+        return a & b;
+    }
+    
+    protected static int not(int a) {
+        return (~a) & 0xFFFF;
+    }
+    
+    protected static boolean je(int a, int b) {
+        return a == b;
+    }
+    
+    protected static boolean je(int a, int b, int c) {
+        return a == b || a == c;
+    }
+    
+    protected static boolean je(int a, int b, int c, int d) {
+        return a == b || a == c || a == d;
+    }
+    
+    protected static boolean jl(int a, int b) {
+        return sign(a) < sign(b);
+    }
+    
+    protected static boolean jg(int a, int b) {
+        return sign(a) > sign(b);
+    }
+    
+    protected static boolean test(int bitmap, int flags) {
+        return (bitmap & flags) == flags;
+    }
+    
+    protected static int loadw(int array, int index, boolean checking, ZMachine z) throws ZError {
+        int address = array + index * 2;
+        if(checking) {
+            z.checkRead(address, 2);
+        }
+        return (z.getByte(address) << 8) | z.getByte(address + 1);
+    }
+    
+    protected static int loadb(int array, int index, boolean checking, ZMachine z) throws ZError {
+        int address = array + index;
+        if(checking) {
+            z.checkRead(address, 1);
+        }
+        return z.getByte(address);
+    }
+    
+    protected static void storew(int array, int index, int value, boolean checking, ZMachine z) throws ZError {
+        int address = array + index * 2;
+        if(checking) {
+            z.checkWrite(address, 2);
+        }
+        z.setNumber(address, value);
+    }
+    
+    protected static void storeb(int array, int index, int value, boolean checking, ZMachine z) throws ZError {
+        int address = array + index;
+        if(checking) {
+            z.checkWrite(address, 1);
+        }
+        z.setByte(address, value);
+    }
+    
+    protected static void push(int value, ZMachine z) throws ZError {
+        z.push(value);
+    }
+    
+    protected static int pop(ZMachine z) throws ZError {
+        return z.pop();
+    }
+    
+    protected static int getParent(int obj, ZMachine z) throws ZError {
+        return z.getObjectParent(obj);
+    }
+    
+    protected static int getSibling(int obj, ZMachine z) throws ZError {
+        return z.getObjectSibling(obj);
+    }
+    
+    protected static int getChild(int obj, ZMachine z) throws ZError {
+        return z.getObjectChild(obj);
+    }
+    
+    protected static boolean jin(int a, int b, ZMachine z) throws ZError {
+        return z.getObjectParent(a) == b;
+    }
+    
+    protected static boolean testAttr(int obj, int attribute, ZMachine z) throws ZError {
+        return z.getObjectAttribute(obj, attribute);
+    }
+    
+    protected static void setAttr(int obj, int attribute, ZMachine z) throws ZError {
+        z.setObjectAttribute(obj, attribute, true);
+    }
+    
+    protected static void clearAttr(int obj, int attribute, ZMachine z) throws ZError {
+        z.setObjectAttribute(obj, attribute, false);
+    }
+    
+    protected static int getProp(int obj, int prop, ZMachine z) throws ZError {
+        return z.getObjectProperty(obj, prop);
+    }
+    
+    protected static int getPropAddr(int obj, int prop, ZMachine z) throws ZError {
+        return z.getObjectPropertyAddress(obj, prop);
+    }
+    
+    protected static void putProp(int obj, int prop, int value, ZMachine z) throws ZError {
+        z.op_put_prop(obj, prop, value);
+    }
+}
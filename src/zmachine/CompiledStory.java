@@ -0,0 +1,64 @@
+package zmachine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * A story compiled by StoryCompiler, loaded through the class loader that
+ * can see the jar it was written to. It plays like any other ZMachine, but
+ * starts out with every compiled routine already in its Jit.
+ */
+public class CompiledStory extends ZMachine {
+    private ClassLoader loader;
+    
+    public CompiledStory(ZIO io, ClassLoader loader) {
+        super(io, new File(StoryCompiler.STORY));
+        this.loader = loader;
+    }
+    
+    @Override
+    protected InputStream openStory() throws IOException {
+        InputStream in = this.loader.getResourceAsStream(StoryCompiler.STORY);
+        if(in == null) {
+            throw new FileNotFoundException(StoryCompiler.STORY);
+        }
+        return in;
+    }
+    
+    @Override
+    public boolean init() throws ZError {
+        if(!super.init()) {
+            return false;
+        }
+        this.enableJit();
+        this.install();
+        return true;
+    }
+    
+    private void install() throws ZError {
+        InputStream in = this.loader.getResourceAsStream(StoryCompiler.INDEX);
+        if(in == null) {
+            throw new ZError("The compiled routines are missing.");
+        }
+        int routine = -1;
+        try {
+            BufferedReader index = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line;
+            while((line = index.readLine()) != null) {
+                routine = Integer.parseInt(line);
+                Class<?> type = Class.forName(StoryCompiler.className(routine).replace('/', '.'), true, this.loader);
+                CompiledRoutine code = (CompiledRoutine)type.getConstructor(int.class).newInstance(routine);
+                this.jit.install(code);
+            }
+            in.close();
+        } catch(Exception e) {
+            throw new ZError(String.format("Couldn't load the compiled routine at %d: %s", routine, e));
+        } catch(LinkageError e) {
+            throw new ZError(String.format("Couldn't load the compiled routine at %d: %s", routine, e));
+        }
+    }
+}
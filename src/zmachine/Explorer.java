@@ -0,0 +1,333 @@
+package zmachine;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Explores a story's state space by trying every command in a vocabulary at
+ * every state reached, breadth first. Each state is a snapshot taken as the
+ * story waits for input; states that come out the same (by a hash of
+ * dynamic memory, the stacks and pc) are only explored once.
+ *
+ * Each level of the search is split between worker threads. Every worker
+ * has its own machine, forked once from the first state, and moves it from
+ * state to state with restore(), which only copies the pages that differ.
+ * Output is thrown away without being decoded.
+ */
+public class Explorer {
+    // A command that runs this many opcodes without asking for more input
+    // is assumed to be stuck.
+    public static final int STEP_LIMIT = 1000000;
+    // Dictionary flags, as set by Inform.
+    public static final int WORD_VERB = 0x01;
+    public static final int WORD_NOUN = 0x80;
+    
+    private File story;
+    private int threads;
+    private List<String> vocabulary;
+    
+    private ConcurrentHashMap<Long, Boolean> seen = new ConcurrentHashMap<Long, Boolean>();
+    private ConcurrentSkipListSet<Integer> scores = new ConcurrentSkipListSet<Integer>();
+    private AtomicInteger commands = new AtomicInteger();
+    private AtomicInteger terminal = new AtomicInteger();
+    private AtomicInteger failed = new AtomicInteger();
+    private int maxStates;
+    
+    public static class Result {
+        public int states;
+        public int depth;
+        public int commands;
+        public int terminal;
+        public int failed;
+        public List<Integer> scores;
+        public long millis;
+        
+        public double statesPerSecond() {
+            return this.millis == 0 ? 0 : this.states * 1000.0 / this.millis;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d states to depth %d (%d commands, %d ended, %d failed) in %d ms, %.0f states/s. Scores: %s",
+                    this.states, this.depth, this.commands, this.terminal, this.failed,
+                    this.millis, this.statesPerSecond(), this.scores);
+        }
+    }
+    
+    // A state waiting for input.
+    private static class State {
+        final ZSnapshot snapshot;
+        final int textAddress;
+        final int parseTable;
+        
+        State(ZSnapshot snapshot, int textAddress, int parseTable) {
+            this.snapshot = snapshot;
+            this.textAddress = textAddress;
+            this.parseTable = parseTable;
+        }
+    }
+    
+    public Explorer(File story, int threads) {
+        this.story = story;
+        this.threads = threads;
+    }
+    
+    // Replaces the vocabulary taken from the story's dictionary.
+    public void setVocabulary(List<String> vocabulary) {
+        this.vocabulary = vocabulary;
+    }
+    
+    /**
+     * Builds commands from the dictionary: every word on its own and, if
+     * the story marks its verbs and nouns, every verb with every noun.
+     */
+    public static List<String> vocabulary(ZMachine z) throws ZError {
+        int entries = z.dictionaryStart + z.getByte(z.dictionaryStart) + 4;
+        ArrayList<String> words = new ArrayList<String>();
+        ArrayList<String> verbs = new ArrayList<String>();
+        ArrayList<String> nouns = new ArrayList<String>();
+        for(int i = 0; i < z.dictionaryLength; ++i) {
+            int entry = entries + i * z.dictionaryEntryLength;
+            String word = ZString.fromMemory(z, entry).toZSCII().toString();
+            words.add(word);
+            int flags = z.getByte(entry + 4);
+            if((flags & WORD_VERB) != 0) verbs.add(word);
+            if((flags & WORD_NOUN) != 0) nouns.add(word);
+        }
+        for(String verb : verbs) {
+            for(String noun : nouns) {
+                words.add(verb + " " + noun);
+            }
+        }
+        return words;
+    }
+    
+    /**
+     * Explores until there is nothing new within maxDepth commands of the
+     * start, or maxStates distinct states have been seen.
+     */
+    public Result explore(int maxDepth, int maxStates) throws ZError, InterruptedException {
+        this.maxStates = maxStates;
+        long start = System.currentTimeMillis();
+        
+        ExplorerMachine root = new ExplorerMachine(this.story);
+        if(!root.init()) {
+            throw new ZError("Couldn't load the story.");
+        }
+        root.run();
+        if(!root.atRead) {
+            throw new ZError("The story never asks for input.");
+        }
+        if(this.vocabulary == null) {
+            this.vocabulary = vocabulary(root);
+        }
+        List<State> frontier = new ArrayList<State>();
+        frontier.add(root.state());
+        this.record(root);
+        
+        LinkedBlockingQueue<ExplorerMachine> machines = new LinkedBlockingQueue<ExplorerMachine>();
+        for(int i = 0; i < this.threads; ++i) {
+            root.snapshot();
+            machines.add(new ExplorerMachine(root));
+        }
+        
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        int depth = 0;
+        try {
+            while(depth < maxDepth && !frontier.isEmpty() && this.seen.size() < maxStates) {
+                frontier = this.expand(pool, machines, frontier);
+                ++depth;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        
+        Result result = new Result();
+        result.states = this.seen.size();
+        result.depth = depth;
+        result.commands = this.commands.get();
+        result.terminal = this.terminal.get();
+        result.failed = this.failed.get();
+        result.scores = new ArrayList<Integer>(this.scores);
+        result.millis = System.currentTimeMillis() - start;
+        return result;
+    }
+    
+    // Runs every command at every state in the frontier, and returns the
+    // new states found.
+    private List<State> expand(ExecutorService pool, final LinkedBlockingQueue<ExplorerMachine> machines,
+            List<State> frontier) throws ZError, InterruptedException {
+        final ConcurrentLinkedQueue<State> next = new ConcurrentLinkedQueue<State>();
+        // Several batches per thread, so that a slow batch doesn't hold up
+        // the whole level.
+        int batch = Math.max(1, frontier.size() / (this.threads * 4));
+        ArrayList<Future<?>> work = new ArrayList<Future<?>>();
+        for(int i = 0; i < frontier.size(); i += batch) {
+            final List<State> states = frontier.subList(i, Math.min(frontier.size(), i + batch));
+            work.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ExplorerMachine machine = machines.poll();
+                    try {
+                        for(State state : states) {
+                            for(String command : vocabulary) {
+                                if(seen.size() >= maxStates) {
+                                    return;
+                                }
+                                State reached = step(machine, state, command);
+                                if(reached != null) {
+                                    next.add(reached);
+                                }
+                            }
+                        }
+                    } finally {
+                        machines.add(machine);
+                    }
+                }
+            }));
+        }
+        for(Future<?> future : work) {
+            try {
+                future.get();
+            } catch(ExecutionException e) {
+                throw new ZError("Explorer failed: " + e.getCause());
+            }
+        }
+        return new ArrayList<State>(next);
+    }
+    
+    // Returns the state the command leads to, if it's one we haven't seen.
+    private State step(ExplorerMachine machine, State state, String command) {
+        this.commands.incrementAndGet();
+        try {
+            machine.restore(state.snapshot);
+            machine.command = command;
+            machine.atRead = false;
+            machine.quit = false;
+            machine.limitSteps(STEP_LIMIT);
+            machine.resumeRead(state.textAddress, state.parseTable);
+            machine.run();
+        } catch(ZError e) {
+            this.failed.incrementAndGet();
+            return null;
+        } catch(RuntimeException e) {
+            // Stories can index off the end of memory and the like.
+            this.failed.incrementAndGet();
+            return null;
+        }
+        if(machine.quit) {
+            this.terminal.incrementAndGet();
+            return null;
+        }
+        if(!machine.atRead) {
+            this.failed.incrementAndGet(); // Ran out of steps.
+            return null;
+        }
+        if(!this.record(machine)) {
+            return null;
+        }
+        return machine.state();
+    }
+    
+    // Notes a state, returning false if it has been seen before.
+    private boolean record(ExplorerMachine machine) {
+        if(this.seen.putIfAbsent(machine.stateHash(), Boolean.TRUE) != null) {
+            return false;
+        }
+        try {
+            this.scores.add(machine.getVariable(0x11, true));
+        } catch(ZError e) {
+            // No score to speak of.
+        }
+        return true;
+    }
+    
+    // Stops whenever the story asks for input, rather than asking for it,
+    // and on quit, rather than throwing its memory away.
+    private static class ExplorerMachine extends ZMachine {
+        String command;
+        boolean atRead;
+        boolean quit;
+        
+        ExplorerMachine(File story) {
+            super(new ExplorerIO(), story);
+            ((ExplorerIO)this.io).machine = this;
+            this.limitSteps(STEP_LIMIT);
+        }
+        
+        ExplorerMachine(ExplorerMachine parent) {
+            super(parent, new ExplorerIO());
+            ((ExplorerIO)this.io).machine = this;
+        }
+        
+        State state() {
+            return new State(this.snapshot(), this.readTextAddress, this.readParseTable);
+        }
+        
+        @Override
+        protected void op_read(int textAddress, int parseTable) throws ZError {
+            this.readTextAddress = textAddress;
+            this.readParseTable = parseTable;
+            this.atRead = true;
+            this.stop();
+            this.pc--; // Leave pc on the read once executeCycle moves it on.
+        }
+        
+        @Override
+        protected void op_quit() {
+            this.quit = true;
+            this.stop();
+        }
+        
+        @Override
+        protected void mainLoop() throws ZError {
+            while(this.running) {
+                this.executeCycle();
+            }
+        }
+    }
+    
+    private static class ExplorerIO implements ZIO, OutputControl {
+        ExplorerMachine machine;
+        
+        @Override
+        public boolean isDiscardingOutput() {
+            return true;
+        }
+        
+        @Override
+        public String readLine() {
+            String command = this.machine.command;
+            this.machine.command = null;
+            return command;
+        }
+        
+        @Override
+        public File chooseFile(String prompt, int type) {
+            return null;
+        }
+        
+        @Override
+        public boolean confirm(String question) {
+            return false;
+        }
+        
+        @Override public void outputString(String str) {}
+        @Override public void outputLine(String line) {}
+        @Override public void outputComment(String comment) {}
+        @Override public void setStatus(String place, int a, int b, int type) {}
+        @Override public void reset() {}
+        @Override public void splitWindow(int lines) {}
+        @Override public void setWindow(int win) {}
+    }
+}
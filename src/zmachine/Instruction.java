@@ -0,0 +1,264 @@
+package zmachine;
+
+/**
+ * A single instruction, decoded the way executeCycle and callOp would
+ * execute it. Decoding only reads memory, so code that can't change (all of
+ * it past dynamic memory) can be decoded once, ahead of time.
+ */
+public class Instruction {
+    // Which opcodes store a result or branch, by operand count. Bit n is
+    // opcode n. Only opcodes that callOp actually handles are listed in
+    // IMPLEMENTED; anything else doesn't decode.
+    private static final int IMPLEMENTED_0OP = 0x3FFF; // 0-13
+    private static final int STORES_0OP = 0;
+    private static final int BRANCHES_0OP = (1 << 5) | (1 << 6) | (1 << 13); // save, restore, verify
+    private static final int IMPLEMENTED_1OP = 0xFEFF; // All but 8
+    private static final int STORES_1OP = (1 << 1) | (1 << 2) | (1 << 3) | (1 << 4) | (1 << 14) | (1 << 15);
+    private static final int BRANCHES_1OP = (1 << 0) | (1 << 1) | (1 << 2); // jz, get_sibling, get_child
+    private static final int IMPLEMENTED_2OP = 0xFFFFFE; // 1-23
+    private static final int STORES_2OP = 0xFFFF00 & ~(1 << 10) & ~(1 << 11) & ~(1 << 12) & ~(1 << 13) & ~(1 << 14);
+    private static final int BRANCHES_2OP = 0xFE | (1 << 10); // je to test, test_attr
+    private static final int IMPLEMENTED_VAR = 0xFFF; // 0-11
+    private static final int STORES_VAR = (1 << 0) | (1 << 7); // call, random
+    
+    // Mnemonics by key(); see the Z-machine standard, section 14.
+    private static final String[] NAMES = {
+        "rtrue", "rfalse", "print", "print_ret", "nop", "save", "restore", "restart",
+        "ret_popped", "pop", "quit", "new_line", "show_status", "verify", null, null,
+        null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null,
+        "jz", "get_sibling", "get_child", "get_parent", "get_prop_len", "inc", "dec", "print_addr",
+        null, "remove_obj", "print_obj", "ret", "jump", "print_paddr", "load", "not",
+        null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null,
+        null, "je", "jl", "jg", "dec_chk", "inc_chk", "jin", "test",
+        "or", "and", "test_attr", "set_attr", "clear_attr", "store", "insert_obj", "loadw",
+        "loadb", "get_prop", "get_prop_addr", "get_next_prop", "add", "sub", "mul", "div",
+        "mod", null, null, null, null, null, null, null,
+        "call", "storew", "storeb", "put_prop", "sread", "print_char", "print_num", "random",
+        "push", "pull", "split_window", "set_window", null, null, null, null,
+        null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null
+    };
+    // The number of distinct keys.
+    public static final int KEYS = 128;
+    
+    public int address;
+    public int length;
+    // The last byte of the operands, which is where callOp expects pc to be.
+    public int operandEnd;
+    // As passed to callOp.
+    public int opcode;
+    public int argCount;
+    public boolean variable;
+    public byte[] operandTypes;
+    // Constants, or variable numbers for OPERAND_TYPE_VAR.
+    public int[] operands;
+    // The variable the result goes to, or -1.
+    public int store = -1;
+    public boolean branches;
+    public boolean branchOn;
+    // As encoded: 0 and 1 mean return false and true.
+    public int branchOffset;
+    // If set, the instruction this one falls through to, which runs in the
+    // same dispatch. See Superinstructions.
+    public Instruction successor;
+    // If set, runs this instruction and its successor in one call.
+    Superinstructions.Pair pair;
+    
+    // Decodes the instruction at address, or returns null if the
+    // interpreter wouldn't be able to run it.
+    public static Instruction decode(ZMachine z, int address) {
+        if(address < 0 || address >= z.memorySize) {
+            return null;
+        }
+        Instruction i = new Instruction();
+        i.address = address;
+        int pc = address;
+        int opcode = z.getByte(pc);
+        byte[] types;
+        if((opcode & 0xC0) == 0xC0) {
+            i.variable = (opcode & 0x20) != 0;
+            i.opcode = opcode & 0x1F;
+            if(++pc >= z.memorySize) {
+                return null;
+            }
+            types = new byte[4];
+            int count = 0;
+            for(int n = 0; n < 4; ++n) {
+                types[n] = (byte)((z.getByte(pc) >>> (3 - n) * 2) & 0x03);
+                if(types[n] != ZMachine.OPERAND_TYPE_OMITTED) {
+                    count++;
+                }
+            }
+            i.argCount = count;
+        } else if((opcode & 0x80) == 0x80) {
+            i.opcode = opcode & 0x0F;
+            if((opcode & 0x30) == 0x30) {
+                types = new byte[0];
+            } else {
+                types = new byte[] { (byte)((opcode >>> 4) & 0x03) };
+            }
+            i.argCount = types.length;
+        } else {
+            i.opcode = opcode & 0x1F;
+            types = new byte[] {
+                (opcode & 0x40) == 0 ? ZMachine.OPERAND_TYPE_SMALL : ZMachine.OPERAND_TYPE_VAR,
+                (opcode & 0x20) == 0 ? ZMachine.OPERAND_TYPE_SMALL : ZMachine.OPERAND_TYPE_VAR
+            };
+            i.argCount = 2;
+        }
+        
+        i.operandTypes = new byte[i.argCount];
+        i.operands = new int[i.argCount];
+        for(int n = 0; n < i.argCount; ++n) {
+            i.operandTypes[n] = types[n];
+            if(types[n] == ZMachine.OPERAND_TYPE_LARGE) {
+                if(pc + 2 >= z.memorySize) {
+                    return null;
+                }
+                i.operands[n] = (z.getByte(pc + 1) << 8) | z.getByte(pc + 2);
+                pc += 2;
+            } else if(types[n] != ZMachine.OPERAND_TYPE_OMITTED) {
+                if(pc + 1 >= z.memorySize) {
+                    return null;
+                }
+                i.operands[n] = z.getByte(++pc);
+            }
+        }
+        
+        i.operandEnd = pc;
+        
+        int bit = 1 << i.opcode;
+        boolean stores;
+        if(i.variable) {
+            if((IMPLEMENTED_VAR & bit) == 0) {
+                return null;
+            }
+            stores = (STORES_VAR & bit) != 0;
+        } else if(i.argCount == 0) {
+            if((IMPLEMENTED_0OP & bit) == 0) {
+                return null;
+            }
+            stores = (STORES_0OP & bit) != 0;
+            i.branches = (BRANCHES_0OP & bit) != 0;
+        } else if(i.argCount == 1) {
+            if((IMPLEMENTED_1OP & bit) == 0) {
+                return null;
+            }
+            stores = (STORES_1OP & bit) != 0;
+            i.branches = (BRANCHES_1OP & bit) != 0;
+        } else if(i.argCount == 2) {
+            if((IMPLEMENTED_2OP & bit) == 0) {
+                return null;
+            }
+            stores = (STORES_2OP & bit) != 0;
+            i.branches = (BRANCHES_2OP & bit) != 0;
+        } else if(i.opcode == 1) {
+            stores = false;
+            i.branches = true; // je with three or four operands
+        } else {
+            return null;
+        }
+        
+        if(stores) {
+            if(++pc >= z.memorySize) {
+                return null;
+            }
+            i.store = z.getByte(pc);
+        }
+        if(i.branches) {
+            if(++pc >= z.memorySize) {
+                return null;
+            }
+            int branch = z.getByte(pc);
+            i.branchOn = (branch & 0x80) != 0;
+            int offset = branch & 0x3F;
+            if((branch & 0x40) == 0) {
+                if(++pc >= z.memorySize) {
+                    return null;
+                }
+                offset = (offset << 8) | z.getByte(pc);
+            }
+            i.branchOffset = z.sign(offset, 14);
+        }
+        if(i.hasText()) {
+            // Strings end with the top bit of a word set.
+            do {
+                pc += 2;
+                if(pc >= z.memorySize) {
+                    return null;
+                }
+            } while((z.getByte(pc - 1) & 0x80) == 0);
+        }
+        i.length = pc + 1 - address;
+        return i;
+    }
+    
+    public int next() {
+        return this.address + this.length;
+    }
+    
+    // Numbers the opcode 0-127 by its operand count (0OP, 1OP, 2OP, VAR)
+    // and number. je with three or four operands counts as 2OP.
+    public int key() {
+        if(this.variable) {
+            return 96 + this.opcode;
+        }
+        return Math.min(this.argCount, 2) * 32 + this.opcode;
+    }
+    
+    public static String name(int key) {
+        String name = NAMES[key];
+        return name != null ? name : "unknown_" + key;
+    }
+    
+    public boolean isOp(boolean variable, int argCount, int opcode) {
+        return this.variable == variable && this.argCount == argCount && this.opcode == opcode;
+    }
+    
+    // print and print_ret, followed by their text.
+    public boolean hasText() {
+        return !this.variable && this.argCount == 0 && (this.opcode == 2 || this.opcode == 3);
+    }
+    
+    public boolean isJump() {
+        return this.isOp(false, 1, 12);
+    }
+    
+    public boolean isCall() {
+        return this.variable && this.opcode == 0;
+    }
+    
+    // Instructions after which execution never carries on to the next one.
+    public boolean isTerminator() {
+        if(this.variable) {
+            return false;
+        }
+        if(this.argCount == 0) {
+            // rtrue, rfalse, print_ret, restart, ret_popped, quit
+            return this.opcode == 0 || this.opcode == 1 || this.opcode == 3
+                    || this.opcode == 7 || this.opcode == 8 || this.opcode == 10;
+        }
+        return this.argCount == 1 && (this.opcode == 11 || this.opcode == 12); // ret, jump
+    }
+    
+    public boolean branchReturns() {
+        return this.branchOffset == 0 || this.branchOffset == 1;
+    }
+    
+    // Where a taken branch or jump goes. Not meaningful for branches that
+    // return.
+    public int target() {
+        if(this.isJump()) {
+            return this.next() + this.constantSigned(0) - 2;
+        }
+        return this.next() + this.branchOffset - 2;
+    }
+    
+    public boolean isConstant(int operand) {
+        return this.operandTypes[operand] != ZMachine.OPERAND_TYPE_VAR;
+    }
+    
+    private int constantSigned(int operand) {
+        int value = this.operands[operand];
+        return (value & 0x8000) != 0 ? value - 0x10000 : value;
+    }
+}
@@ -0,0 +1,111 @@
+package zmachine;
+
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The second tier of execution. Counts how often each routine is called,
+ * and once a routine has been called THRESHOLD times translates it into a
+ * JVM class (see RoutineCompiler), which op_call runs from then on.
+ *
+ * Only routines past dynamic memory are compiled. Stories can only write
+ * to dynamic memory, so the code never changes under a compiled routine,
+ * and it can be shared by every machine forked from the same story.
+ */
+public class Jit {
+    public static final int THRESHOLD = Integer.getInteger("zmachine.jitThreshold", 1000);
+    
+    // By routine address / 2; routines are always at even addresses. A
+    // routine's count only reaches THRESHOLD once, so one that fails to
+    // compile isn't tried again.
+    private int[] calls;
+    private CompiledRoutine[] compiled;
+    private ArrayList<CompiledRoutine> routines = new ArrayList<CompiledRoutine>();
+    private Loader loader = new Loader();
+    private int failures;
+    
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(CompiledRoutine.class.getClassLoader());
+        }
+        
+        Class<?> define(String name, byte[] bytes) {
+            return this.defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+    
+    public Jit(ZMachine z) {
+        int size = (z.memorySize + 1) / 2;
+        this.calls = new int[size];
+        this.compiled = new CompiledRoutine[size];
+    }
+    
+    // Called by op_call on entering a routine. Returns the compiled code to
+    // run, if there is any.
+    CompiledRoutine called(ZMachine z, int routine) {
+        int index = routine >>> 1;
+        CompiledRoutine code = this.compiled[index];
+        if(code != null || ++this.calls[index] != THRESHOLD) {
+            return code;
+        }
+        return this.compile(z, routine);
+    }
+    
+    private synchronized CompiledRoutine compile(ZMachine z, int routine) {
+        int index = routine >>> 1;
+        if(this.compiled[index] != null) {
+            return this.compiled[index];
+        }
+        if(routine < z.memoryDynamicEnd) {
+            return null;
+        }
+        Verifier.Routine disassembly = new Verifier(z).routine(routine);
+        String name = String.format("zmachine/compiled/Routine%05x_%d", routine, this.routines.size());
+        CompiledRoutine code;
+        try {
+            byte[] bytes = new RoutineCompiler(z, disassembly).compile(name);
+            Class<?> type = this.loader.define(name.replace('/', '.'), bytes);
+            code = (CompiledRoutine)type.getConstructor(int.class).newInstance(routine);
+        } catch(Exception e) {
+            this.failed(routine, e);
+            return null;
+        } catch(LinkageError e) {
+            this.failed(routine, e);
+            return null;
+        }
+        this.add(code);
+        return code;
+    }
+    
+    /**
+     * Adds a routine compiled ahead of time, which is used from its first
+     * call on.
+     */
+    public synchronized void install(CompiledRoutine code) {
+        if(code.address < 0 || (code.address >>> 1) >= this.compiled.length) {
+            throw new IllegalArgumentException("No routine at " + code.address);
+        }
+        this.add(code);
+    }
+    
+    private void add(CompiledRoutine code) {
+        this.routines.add(code);
+        this.compiled[code.address >>> 1] = code;
+    }
+    
+    private void failed(int routine, Throwable e) {
+        ++this.failures;
+        Logger.getLogger(Jit.class.getName()).log(Level.WARNING,
+                String.format("Couldn't compile the routine at %d", routine), e);
+    }
+    
+    public synchronized int getCompiledCount() {
+        return this.routines.size();
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("%d routines compiled, %d failed", this.routines.size(), this.failures);
+    }
+}
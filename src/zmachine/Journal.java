@@ -0,0 +1,389 @@
+package zmachine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records everything a session depends on from outside the story: each
+ * line of input, each file chosen, and every seed given to the random
+ * number generator. Running the story again with the same journal brings
+ * it back to exactly the same state, which is much cheaper to keep than a
+ * save after every turn.
+ *
+ * Every CHECKPOINT_INTERVAL lines the journal is rewritten to hold a
+ * checkpoint of the machine (a Quetzal save plus the RNG state) and nothing
+ * else, so a replay never has to run more than that many turns. So is every
+ * undo: the undo history isn't in a checkpoint, so a replay couldn't undo
+ * past one, and recording where the undo went keeps the replay exact.
+ *
+ * Usage: create a machine, open the journal and call resume(). If the
+ * journal has anything in it, the story is replayed with its output thrown
+ * away, then carries on with live input as if nothing had happened.
+ */
+public class Journal {
+    public static final int CHECKPOINT_INTERVAL = 50;
+    
+    private static final byte SEED = 'S';
+    private static final byte LINE = 'L';
+    private static final byte FILE = 'F';
+    private static final byte CHECKPOINT = 'C';
+    
+    private File file;
+    private DataOutputStream out;
+    private ZMachine machine;
+    private QuetzalSaver saver;
+    private int linesSinceCheckpoint;
+    
+    // What's left to replay, in the order it was recorded. Output stays
+    // off until the story asks for a line that isn't in here.
+    private ArrayDeque<Record> replay = new ArrayDeque<Record>();
+    private boolean replaying;
+    private Checkpoint checkpoint;
+    
+    private static class Record {
+        final byte type;
+        final long seed;
+        final String text;
+        
+        Record(byte type, long seed, String text) {
+            this.type = type;
+            this.seed = seed;
+            this.text = text;
+        }
+    }
+    
+    private static class Checkpoint {
+        int textAddress;
+        int parseTable;
+        long rngState;
+        byte[] save;
+    }
+    
+    /**
+     * Opens the journal, creating it if need be. Anything already in it is
+     * read back ready for resume(). A record cut short by a crash is
+     * dropped.
+     */
+    public Journal(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            long good = 0;
+            try {
+                while(f.getFilePointer() < f.length()) {
+                    this.readRecord(f);
+                    good = f.getFilePointer();
+                }
+            } catch(EOFException e) {
+                Logger.getLogger(Journal.class.getName()).log(Level.WARNING,
+                        "Dropping a damaged record from the end of {0}", file);
+                f.setLength(good);
+            }
+        } finally {
+            f.close();
+        }
+        this.out = this.openForAppend();
+    }
+    
+    private void readRecord(RandomAccessFile f) throws IOException {
+        byte type = f.readByte();
+        if(type == SEED) {
+            this.replay.addLast(new Record(type, f.readLong(), null));
+        } else if(type == LINE || type == FILE) {
+            this.replay.addLast(new Record(type, 0, f.readUTF()));
+            if(type == LINE) {
+                ++this.linesSinceCheckpoint;
+            }
+        } else if(type == CHECKPOINT) {
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.textAddress = f.readInt();
+            checkpoint.parseTable = f.readInt();
+            checkpoint.rngState = f.readLong();
+            checkpoint.save = new byte[f.readInt()];
+            f.readFully(checkpoint.save);
+            // Everything before a checkpoint is already accounted for.
+            this.checkpoint = checkpoint;
+            this.replay.clear();
+            this.linesSinceCheckpoint = 0;
+        } else {
+            throw new EOFException(); // Garbage; treat it like a torn write.
+        }
+    }
+    
+    private DataOutputStream openForAppend() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file, true)));
+    }
+    
+    /**
+     * Brings the machine to where the journal leaves off and runs it from
+     * there. The machine must not have been initialised yet.
+     */
+    public void resume(ZMachine z) throws ZError {
+        this.machine = z;
+        this.saver = new QuetzalSaver(z);
+        if(this.checkpoint == null) {
+            this.attach(z);
+            if(!z.init()) {
+                throw new ZError("Couldn't load the story.");
+            }
+            z.run();
+            return;
+        }
+        
+        // The checkpoint's own seed is in its RNG state, so the machine can
+        // be set up before the journal is attached.
+        if(!z.init()) {
+            throw new ZError("Couldn't load the story.");
+        }
+        try {
+            new QuetzalLoader(z).load(ByteBuffer.wrap(this.checkpoint.save));
+        } catch(IOException e) {
+            throw new QuetzalError("Journal checkpoint is damaged.");
+        }
+        z.rng.setState(this.checkpoint.rngState);
+        this.attach(z);
+        Checkpoint checkpoint = this.checkpoint;
+        this.checkpoint = null;
+        z.resumeRead(checkpoint.textAddress, checkpoint.parseTable);
+        z.run();
+    }
+    
+    private void attach(ZMachine z) {
+        this.replaying = !this.replay.isEmpty();
+        z.journal = this;
+        z.io = new JournalIO(z.io);
+    }
+    
+    public void close() throws IOException {
+        this.out.close();
+    }
+    
+    // Gives up on the rest of the replay when the story asks for something
+    // other than what was recorded next. That only happens if the story
+    // file has changed under the journal.
+    private void mismatch() {
+        Logger.getLogger(Journal.class.getName()).log(Level.WARNING,
+                "{0} doesn't match the story; abandoning the replay.", this.file);
+        this.replay.clear();
+        this.replaying = false;
+    }
+    
+    private Record next(byte type) {
+        Record record = this.replay.peekFirst();
+        if(record == null) {
+            return null;
+        }
+        if(record.type != type) {
+            this.mismatch();
+            return null;
+        }
+        return this.replay.removeFirst();
+    }
+    
+    // Called by the machine whenever it needs a new seed.
+    long seed() {
+        Record record = this.next(SEED);
+        if(record != null) {
+            return record.seed;
+        }
+        long seed = System.nanoTime();
+        try {
+            this.out.writeByte(SEED);
+            this.out.writeLong(seed);
+            this.out.flush();
+        } catch(IOException e) {
+            this.failed(e);
+        }
+        return seed;
+    }
+    
+    // Called by op_read before it asks for input.
+    void readStarted(int textAddress, int parseTable) {
+        if(this.replaying || this.linesSinceCheckpoint < CHECKPOINT_INTERVAL) {
+            return;
+        }
+        try {
+            this.writeCheckpoint(textAddress, parseTable);
+            this.linesSinceCheckpoint = 0;
+        } catch(IOException e) {
+            this.failed(e);
+        } catch(ZError e) {
+            Logger.getLogger(Journal.class.getName()).log(Level.WARNING,
+                    "Couldn't checkpoint " + this.file, e);
+        }
+    }
+    
+    // Called by the machine after an undo, now waiting on the restored read.
+    void undone(int textAddress, int parseTable) {
+        if(this.replaying) {
+            return;
+        }
+        try {
+            this.writeCheckpoint(textAddress, parseTable);
+            this.linesSinceCheckpoint = 0;
+        } catch(IOException e) {
+            this.failed(e);
+        } catch(ZError e) {
+            Logger.getLogger(Journal.class.getName()).log(Level.WARNING,
+                    "Couldn't checkpoint " + this.file, e);
+        }
+    }
+    
+    // Replaces the journal with one holding only a checkpoint of the
+    // machine as it is now.
+    private void writeCheckpoint(int textAddress, int parseTable) throws IOException, ZError {
+        ByteBuffer save = this.saver.writeSave();
+        File directory = this.file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(this.file.getName(), ".tmp", directory);
+        DataOutputStream f = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            f.writeByte(CHECKPOINT);
+            f.writeInt(textAddress);
+            f.writeInt(parseTable);
+            f.writeLong(this.machine.rng.getState());
+            f.writeInt(save.remaining());
+            f.write(save.array(), save.arrayOffset() + save.position(), save.remaining());
+        } finally {
+            f.close();
+        }
+        this.out.close();
+        if(!temp.renameTo(this.file)) {
+            this.file.delete();
+            if(!temp.renameTo(this.file)) {
+                throw new IOException("Couldn't replace " + this.file);
+            }
+        }
+        this.out = this.openForAppend();
+    }
+    
+    private void recordText(byte type, String text) {
+        try {
+            this.out.writeByte(type);
+            this.out.writeUTF(text);
+            this.out.flush();
+        } catch(IOException e) {
+            this.failed(e);
+        }
+    }
+    
+    private void failed(IOException e) {
+        Logger.getLogger(Journal.class.getName()).log(Level.SEVERE,
+                "Couldn't write to " + this.file, e);
+    }
+    
+    // Sits between the machine and its real ZIO. While replaying it answers
+    // from the journal and swallows output; after that it passes everything
+    // through, writing down what comes back. If the real ZIO is itself
+    // discarding output, so is this.
+    private class JournalIO implements ZIO, OutputControl {
+        private ZIO io;
+        private String place;
+        private int a, b, type = -1;
+        
+        JournalIO(ZIO io) {
+            this.io = io;
+        }
+        
+        @Override
+        public boolean isDiscardingOutput() {
+            return replaying || (this.io instanceof OutputControl && ((OutputControl)this.io).isDiscardingOutput());
+        }
+        
+        @Override
+        public void outputString(String str) {
+            if(!replaying) {
+                this.io.outputString(str);
+            }
+        }
+        
+        @Override
+        public void outputLine(String line) {
+            if(!replaying) {
+                this.io.outputLine(line);
+            }
+        }
+        
+        @Override
+        public void outputComment(String comment) {
+            if(!replaying) {
+                this.io.outputComment(comment);
+            }
+        }
+        
+        @Override
+        public String readLine() {
+            if(replaying) {
+                Record record = next(LINE);
+                if(record != null) {
+                    return record.text;
+                }
+                replaying = false;
+            }
+            if(this.type != -1) {
+                // Catch the status line up with the replay.
+                this.io.setStatus(this.place, this.a, this.b, this.type);
+                this.type = -1;
+            }
+            String line = this.io.readLine();
+            if(line != null) {
+                recordText(LINE, line);
+                ++linesSinceCheckpoint;
+            }
+            return line;
+        }
+        
+        @Override
+        public File chooseFile(String prompt, int type) {
+            if(replaying) {
+                Record record = next(FILE);
+                if(record != null) {
+                    return record.text.length() == 0 ? null : new File(record.text);
+                }
+            }
+            File file = this.io.chooseFile(prompt, type);
+            recordText(FILE, file == null ? "" : file.getAbsolutePath());
+            return file;
+        }
+        
+        @Override
+        public void setStatus(String place, int a, int b, int type) {
+            if(replaying) {
+                this.place = place;
+                this.a = a;
+                this.b = b;
+                this.type = type;
+            } else {
+                this.io.setStatus(place, a, b, type);
+            }
+        }
+        
+        @Override
+        public boolean confirm(String question) {
+            return this.io.confirm(question);
+        }
+        
+        @Override
+        public void reset() {
+            this.io.reset();
+        }
+        
+        @Override
+        public void splitWindow(int lines) {
+            this.io.splitWindow(lines);
+        }
+        
+        @Override
+        public void setWindow(int win) {
+            this.io.setWindow(win);
+        }
+    }
+}
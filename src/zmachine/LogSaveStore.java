@@ -0,0 +1,407 @@
+package zmachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A SaveStore that appends every save to a log, for when there are far too
+ * many sessions to give each save its own file.
+ * 
+ * The log is a directory of numbered segment files. Saves are only ever
+ * appended to the newest segment; once it passes SEGMENT_SIZE a new one is
+ * started. An in-memory index maps each key to its latest record. Older
+ * records for the same key are dead weight, so a background thread copies
+ * the live records out of any closed segment that is mostly dead and then
+ * deletes it.
+ * 
+ * Each record is:
+ *   magic (4) | CRC32 of everything after it (4) | key length (2) |
+ *   save length (4) | key (UTF-8) | save
+ * On startup the index is rebuilt by scanning the segments in order. A
+ * record at the end of the newest segment that is cut short or fails its
+ * CRC is the remains of a crash, so the segment is truncated there. Older
+ * segments were finished with before any crash, so damage in one is skipped
+ * over to the next record with a good magic and CRC; the bytes in between
+ * count as dead and go when the segment is compacted.
+ */
+public class LogSaveStore implements SaveStore {
+    public static final long SEGMENT_SIZE = 16 << 20; // 16 megabytes
+    // Closed segments with less than this fraction still live get compacted.
+    public static final double COMPACT_THRESHOLD = 0.5;
+    // How long to wait before trying again when compaction fails, in
+    // milliseconds.
+    public static final long COMPACT_RETRY_INTERVAL = 10000;
+    
+    private static final int MAGIC = 0x5A534156; // "ZSAV"
+    private static final int HEADER_SIZE = 14;
+    // How much of a damaged segment is read at a time while looking for
+    // the next record.
+    private static final int SCAN_SIZE = 64 << 10;
+    
+    private File directory;
+    private boolean sync;
+    private TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment active;
+    private HashMap<String, Record> index = new HashMap<String, Record>();
+    private Thread compactor;
+    private boolean closed = false;
+    
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long size;
+        long live;
+        
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = this.channel.size();
+        }
+    }
+    
+    private static class Record {
+        final Segment segment;
+        final long offset;
+        final int length; // Whole record, header included.
+        final int saveOffset;
+        final int saveLength;
+        
+        Record(Segment segment, long offset, int keyLength, int saveLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.saveOffset = HEADER_SIZE + keyLength;
+            this.saveLength = saveLength;
+            this.length = this.saveOffset + saveLength;
+        }
+    }
+    
+    /**
+     * Opens (or creates) a store in the given directory. With sync set,
+     * every write is forced to disk before it returns.
+     */
+    public LogSaveStore(File directory, boolean sync) throws IOException {
+        this.directory = directory;
+        this.sync = sync;
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create save store " + directory);
+        }
+        File[] files = directory.listFiles();
+        for(File file : files) {
+            String name = file.getName();
+            if(name.startsWith("segment-") && name.endsWith(".log")) {
+                int id;
+                try {
+                    id = Integer.parseInt(name.substring(8, name.length() - 4));
+                } catch(NumberFormatException e) {
+                    Logger.getLogger(LogSaveStore.class.getName()).log(Level.WARNING,
+                            "Ignoring {0}, which isn''t a segment", file);
+                    continue;
+                }
+                this.segments.put(id, new Segment(id, file));
+            }
+        }
+        for(Segment segment : this.segments.values()) {
+            this.recover(segment, segment == this.segments.lastEntry().getValue());
+        }
+        if(this.segments.isEmpty()) {
+            this.active = this.createSegment(1);
+        } else {
+            this.active = this.segments.lastEntry().getValue();
+        }
+        
+        this.compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compactLoop();
+            }
+        }, "Save store compaction");
+        this.compactor.setDaemon(true);
+        this.compactor.start();
+    }
+    
+    @Override
+    public synchronized void write(String key, byte[] save) throws IOException {
+        if(this.closed) {
+            throw new IOException("Save store is closed.");
+        }
+        if(this.active.size >= SEGMENT_SIZE) {
+            this.active = this.createSegment(this.active.id + 1);
+            this.notifyAll(); // The old one may want compacting now.
+        }
+        this.append(key, save, 0, save.length);
+    }
+    
+    @Override
+    public synchronized InputStream read(String key) throws IOException {
+        Record record = this.index.get(key);
+        if(record == null) {
+            return null;
+        }
+        return new ByteArrayInputStream(this.readSave(record));
+    }
+    
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            this.closed = true;
+            this.notifyAll();
+        }
+        try {
+            this.compactor.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized(this) {
+            for(Segment segment : this.segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+    
+    // Appends a record to the active segment and points the index at it.
+    private void append(String key, byte[] save, int offset, int length) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + length);
+        record.putInt(MAGIC);
+        record.putInt(0); // CRC, filled in below.
+        record.putShort((short)keyBytes.length);
+        record.putInt(length);
+        record.put(keyBytes);
+        record.put(save, offset, length);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.capacity() - 8);
+        record.putInt(4, (int)crc.getValue());
+        record.flip();
+        
+        Segment segment = this.active;
+        long position = segment.size;
+        while(record.hasRemaining()) {
+            segment.channel.write(record, position + record.position());
+        }
+        if(this.sync) {
+            segment.channel.force(false);
+        }
+        segment.size += record.capacity();
+        this.index(key, new Record(segment, position, keyBytes.length, length));
+    }
+    
+    private void index(String key, Record record) {
+        Record old = this.index.put(key, record);
+        record.segment.live += record.length;
+        if(old != null) {
+            old.segment.live -= old.length;
+            if(old.segment != this.active && this.shouldCompact(old.segment)) {
+                this.notifyAll();
+            }
+        }
+    }
+    
+    private byte[] readSave(Record record) throws IOException {
+        ByteBuffer save = ByteBuffer.allocate(record.saveLength);
+        long position = record.offset + record.saveOffset;
+        while(save.hasRemaining()) {
+            if(record.segment.channel.read(save, position + save.position()) < 0) {
+                throw new IOException("Save store segment is truncated.");
+            }
+        }
+        return save.array();
+    }
+    
+    private Segment createSegment(int id) throws IOException {
+        File file = new File(this.directory, String.format("segment-%08d.log", id));
+        Segment segment = new Segment(id, file);
+        this.segments.put(id, segment);
+        return segment;
+    }
+    
+    // Rebuilds the index entries for one segment. Segments must be
+    // recovered in order, so that later records replace earlier ones.
+    // Synchronized because index() may wake the compactor.
+    private synchronized void recover(Segment segment, boolean last) throws IOException {
+        long position = 0;
+        long damaged = 0;
+        while(position < segment.size) {
+            long next = this.recoverRecord(segment, position);
+            if(next >= 0) {
+                position = next;
+            } else if(last) {
+                break;
+            } else {
+                next = this.findMagic(segment, position + 1);
+                damaged += next - position;
+                position = next;
+            }
+        }
+        if(damaged > 0) {
+            Logger.getLogger(LogSaveStore.class.getName()).log(Level.WARNING,
+                    "Skipped {0} bytes of damaged records in {1}",
+                    new Object[] { damaged, segment.file });
+        }
+        if(position < segment.size) {
+            Logger.getLogger(LogSaveStore.class.getName()).log(Level.WARNING,
+                    "Discarding {0} bytes of damaged records from {1}",
+                    new Object[] { segment.size - position, segment.file });
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+    
+    // Indexes the record at position and returns where the next one starts,
+    // or -1 if there isn't a whole, undamaged record there.
+    private long recoverRecord(Segment segment, long position) throws IOException {
+        if(segment.size - position < HEADER_SIZE) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        segment.channel.read(header, position);
+        header.flip();
+        if(header.getInt() != MAGIC) {
+            return -1;
+        }
+        int crc = header.getInt();
+        int keyLength = header.getShort() & 0xFFFF;
+        int saveLength = header.getInt();
+        if(saveLength < 0 || position + HEADER_SIZE + keyLength + saveLength > segment.size) {
+            return -1;
+        }
+        ByteBuffer body = ByteBuffer.allocate(6 + keyLength + saveLength);
+        body.putShort((short)keyLength);
+        body.putInt(saveLength);
+        while(body.hasRemaining()) {
+            segment.channel.read(body, position + 8 + body.position());
+        }
+        CRC32 check = new CRC32();
+        check.update(body.array());
+        if((int)check.getValue() != crc) {
+            return -1;
+        }
+        String key = new String(body.array(), 6, keyLength, "UTF-8");
+        Record record = new Record(segment, position, keyLength, saveLength);
+        this.index(key, record);
+        return position + record.length;
+    }
+    
+    // The offset of the next record magic at or after from, or the end of
+    // the segment if there isn't one.
+    private long findMagic(Segment segment, long from) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(SCAN_SIZE);
+        long start = from;
+        while(start + 4 <= segment.size) {
+            chunk.clear();
+            chunk.limit((int)Math.min(SCAN_SIZE, segment.size - start));
+            while(chunk.hasRemaining()) {
+                segment.channel.read(chunk, start + chunk.position());
+            }
+            for(int i = 0; i + 4 <= chunk.limit(); ++i) {
+                if(chunk.getInt(i) == MAGIC) {
+                    return start + i;
+                }
+            }
+            // The magic may straddle the end of the chunk.
+            start += chunk.limit() - 3;
+        }
+        return segment.size;
+    }
+    
+    private boolean shouldCompact(Segment segment) {
+        return segment.live < segment.size * COMPACT_THRESHOLD;
+    }
+    
+    private Segment findCompactable() {
+        for(Segment segment : this.segments.values()) {
+            if(segment != this.active && this.shouldCompact(segment)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+    
+    private void compactLoop() {
+        while(true) {
+            Segment segment = null;
+            synchronized(this) {
+                while(!this.closed && (segment = this.findCompactable()) == null) {
+                    try {
+                        this.wait();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                }
+                if(this.closed) {
+                    return;
+                }
+            }
+            try {
+                this.compact(segment);
+            } catch(IOException e) {
+                // Likely a full disk. Whatever it was, it may well clear up,
+                // and until it does the segments only grow.
+                Logger.getLogger(LogSaveStore.class.getName()).log(Level.SEVERE,
+                        "Couldn't compact " + segment.file + "; trying again later", e);
+                long retry = System.currentTimeMillis() + COMPACT_RETRY_INTERVAL;
+                synchronized(this) {
+                    // Writes wake us up as well, so keep waiting.
+                    long now;
+                    while(!this.closed && (now = System.currentTimeMillis()) < retry) {
+                        try {
+                            this.wait(retry - now);
+                        } catch(InterruptedException interrupted) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    // Copies the live records out of a closed segment, then deletes it.
+    // Records are moved one at a time so that writers are only ever held
+    // up for the length of one copy.
+    private void compact(Segment segment) throws IOException {
+        ArrayList<String> keys = new ArrayList<String>();
+        synchronized(this) {
+            for(Map.Entry<String, Record> entry : this.index.entrySet()) {
+                if(entry.getValue().segment == segment) {
+                    keys.add(entry.getKey());
+                }
+            }
+        }
+        for(String key : keys) {
+            synchronized(this) {
+                if(this.closed) {
+                    return;
+                }
+                Record record = this.index.get(key);
+                if(record == null || record.segment != segment) {
+                    continue; // Saved again since.
+                }
+                if(this.active.size >= SEGMENT_SIZE) {
+                    this.active = this.createSegment(this.active.id + 1);
+                }
+                byte[] save = this.readSave(record);
+                this.append(key, save, 0, save.length);
+            }
+        }
+        synchronized(this) {
+            if(segment.live == 0) {
+                this.segments.remove(segment.id);
+                segment.channel.close();
+                segment.file.delete();
+            }
+        }
+    }
+}
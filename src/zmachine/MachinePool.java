@@ -0,0 +1,189 @@
+package zmachine;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Keeps finished machines for a story so that new sessions can reuse them
+ * instead of loading the story again. A returned machine is reset in place,
+ * so leasing one allocates nothing. When the pool is empty a new machine is
+ * forked from a template that was loaded once and never run.
+ *
+ * The template can also be run through the story's introduction up to its
+ * first request for input. Every machine then starts from there, and the
+ * introduction's output is played back to each new session's ZIO, so
+ * starting a session costs a memory copy at most. Anything random in the
+ * introduction comes out the same for everyone; each machine is given its
+ * own seed from the first read on.
+ */
+public class MachinePool {
+    private ZMachine template;
+    private int maxIdle;
+    private ArrayDeque<ZMachine> idle = new ArrayDeque<ZMachine>();
+    private int created;
+    // Only set when the template has been run through the introduction.
+    private ZSnapshot intro;
+    private IntroRecorder introOutput;
+    
+    // Keeps at most maxIdle machines waiting to be leased.
+    public MachinePool(File story, int maxIdle) throws ZError {
+        this(story, maxIdle, false);
+    }
+    
+    public MachinePool(File story, int maxIdle, boolean runIntro) throws ZError {
+        this.template = new ZMachine(null, story);
+        if(!this.template.init()) {
+            throw new ZError("Couldn't load the story.");
+        }
+        this.maxIdle = maxIdle;
+        if(runIntro) {
+            this.introOutput = new IntroRecorder();
+            this.template.io = this.introOutput;
+            this.template.stopAtNextRead();
+            this.template.run();
+            if(!this.template.isPausedAtRead()) {
+                throw new ZError("The story ended without asking for input.");
+            }
+            this.template.io = null;
+            this.intro = this.template.snapshot();
+        }
+    }
+    
+    /**
+     * Hands out a machine at the start of the story, talking to io. Call
+     * run() on it, and give it back with release() when the session is
+     * over.
+     */
+    public ZMachine lease(ZIO io) throws ZError {
+        ZMachine z;
+        synchronized(this) {
+            z = this.idle.pollLast();
+            if(z == null) {
+                ++this.created;
+            }
+        }
+        if(z == null) {
+            synchronized(this.template) {
+                this.template.snapshotPages();
+                z = new ZMachine(this.template, io);
+            }
+            z.rng.setSeed(z.newSeed());
+        }
+        z.io = io;
+        if(this.introOutput != null) {
+            this.introOutput.replay(io);
+        }
+        return z;
+    }
+    
+    /**
+     * Takes a machine back. It must have stopped running. Anything the
+     * session attached to it (its ZIO, journal or save store) is dropped.
+     */
+    public void release(ZMachine z) throws ZError {
+        z.io = null;
+        z.journal = null;
+        z.saveStore = null;
+        z.saveSession = null;
+        z.reset();
+        if(this.intro != null) {
+            z.restore(this.intro);
+            z.readTextAddress = this.template.readTextAddress;
+            z.readParseTable = this.template.readParseTable;
+            z.pausedAtRead = true;
+            z.rng.setSeed(z.newSeed());
+        }
+        synchronized(this) {
+            if(this.idle.size() < this.maxIdle) {
+                this.idle.addLast(z);
+            }
+        }
+    }
+    
+    public synchronized int getIdleCount() {
+        return this.idle.size();
+    }
+    
+    // How many machines the pool has had to make.
+    public synchronized int getCreatedCount() {
+        return this.created;
+    }
+    
+    // Writes down everything the introduction outputs, to be played back to
+    // each session.
+    private static class IntroRecorder implements ZIO {
+        private static final int STRING = 0;
+        private static final int LINE = 1;
+        private static final int COMMENT = 2;
+        private static final int STATUS = 3;
+        private static final int SPLIT = 4;
+        private static final int WINDOW = 5;
+        
+        private ArrayList<Object[]> calls = new ArrayList<Object[]>();
+        
+        void replay(ZIO io) {
+            for(Object[] call : this.calls) {
+                switch((Integer)call[0]) {
+                    case STRING: io.outputString((String)call[1]); break;
+                    case LINE: io.outputLine((String)call[1]); break;
+                    case COMMENT: io.outputComment((String)call[1]); break;
+                    case STATUS: io.setStatus((String)call[1], (Integer)call[2], (Integer)call[3], (Integer)call[4]); break;
+                    case SPLIT: io.splitWindow((Integer)call[1]); break;
+                    case WINDOW: io.setWindow((Integer)call[1]); break;
+                }
+            }
+        }
+        
+        @Override
+        public void outputString(String str) {
+            this.calls.add(new Object[] { STRING, str });
+        }
+        
+        @Override
+        public void outputLine(String line) {
+            this.calls.add(new Object[] { LINE, line });
+        }
+        
+        @Override
+        public void outputComment(String comment) {
+            this.calls.add(new Object[] { COMMENT, comment });
+        }
+        
+        @Override
+        public void setStatus(String place, int a, int b, int type) {
+            this.calls.add(new Object[] { STATUS, place, a, b, type });
+        }
+        
+        @Override
+        public void splitWindow(int lines) {
+            this.calls.add(new Object[] { SPLIT, lines });
+        }
+        
+        @Override
+        public void setWindow(int win) {
+            this.calls.add(new Object[] { WINDOW, win });
+        }
+        
+        // The template stops before it would ask for anything.
+        @Override
+        public String readLine() {
+            return null;
+        }
+        
+        @Override
+        public File chooseFile(String prompt, int type) {
+            return null;
+        }
+        
+        @Override
+        public boolean confirm(String question) {
+            return false;
+        }
+        
+        @Override
+        public void reset() {
+            this.calls.clear();
+        }
+    }
+}
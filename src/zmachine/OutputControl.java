@@ -0,0 +1,11 @@
+package zmachine;
+
+/**
+ * A ZIO can also implement this to say when it's throwing output away,
+ * as during a replay or a fast-forward. The machine then doesn't bother
+ * decoding text or updating the status line; print opcodes just step over
+ * their strings.
+ */
+public interface OutputControl {
+    public boolean isDiscardingOutput();
+}
@@ -0,0 +1,135 @@
+package zmachine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Counts the opcodes a machine runs, and the pairs and triples of them
+ * that run back to back, to find out which sequences are worth fusing
+ * (see Superinstructions). A sequence only counts if each instruction falls
+ * through to the next, since those are the only ones that can be fused.
+ *
+ * Turned on by the zmachine.profile property or enableProfile(). It slows
+ * the machine down a good deal.
+ */
+public class Profile {
+    private static final int KEYS = Instruction.KEYS;
+    
+    // Decoded as they're first run, so as not to decode them every time.
+    private Instruction[] decoded;
+    private long[] singles = new long[KEYS];
+    private long[] pairs = new long[KEYS * KEYS];
+    private long[] triples = new long[KEYS * KEYS * KEYS];
+    private long instructions;
+    private long fused;
+    // The keys of the last two instructions, if they fell through to each
+    // other, and where the last one falls through to.
+    private int previous = -1;
+    private int beforePrevious = -1;
+    private int expected = -1;
+    
+    public Profile(ZMachine z) {
+        this.decoded = new Instruction[z.memorySize];
+    }
+    
+    // Called with each instruction before it runs.
+    void executed(ZMachine z, int address) {
+        ++this.instructions;
+        Instruction i = this.decoded[address];
+        if(i == null || address < z.memoryDynamicEnd) {
+            i = Instruction.decode(z, address);
+            if(i == null) {
+                this.previous = this.beforePrevious = this.expected = -1;
+                return;
+            }
+            this.decoded[address] = i;
+        }
+        int key = i.key();
+        ++this.singles[key];
+        if(address == this.expected) {
+            ++this.pairs[this.previous * KEYS + key];
+            if(this.beforePrevious >= 0) {
+                ++this.triples[(this.beforePrevious * KEYS + this.previous) * KEYS + key];
+            }
+            this.beforePrevious = this.previous;
+        } else {
+            this.beforePrevious = -1;
+        }
+        this.previous = key;
+        this.expected = i.next();
+    }
+    
+    // Called when an instruction ran as the second half of a fused pair,
+    // without a dispatch of its own.
+    void fused() {
+        ++this.fused;
+    }
+    
+    public long getInstructions() {
+        return this.instructions;
+    }
+    
+    public long getFused() {
+        return this.fused;
+    }
+    
+    // The limit commonest pairs, each as the keys of its two opcodes.
+    public int[][] getTopPairs(int limit) {
+        List<long[]> entries = top(this.pairs, limit);
+        int[][] pairs = new int[entries.size()][];
+        for(int n = 0; n < pairs.length; ++n) {
+            int index = (int)entries.get(n)[1];
+            pairs[n] = new int[] { index / KEYS, index % KEYS };
+        }
+        return pairs;
+    }
+    
+    // The commonest sequences, as pairs of (count, index into counts).
+    private static List<long[]> top(long[] counts, int limit) {
+        List<long[]> entries = new ArrayList<long[]>();
+        for(int i = 0; i < counts.length; ++i) {
+            if(counts[i] > 0) {
+                entries.add(new long[] { counts[i], i });
+            }
+        }
+        Collections.sort(entries, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? 1 : a[0] > b[0] ? -1 : 0;
+            }
+        });
+        return entries.subList(0, Math.min(limit, entries.size()));
+    }
+    
+    private void report(StringBuilder out, String title, long[] counts, int length, int limit) {
+        out.append(title).append(":\n");
+        for(long[] entry : top(counts, limit)) {
+            StringBuilder names = new StringBuilder();
+            int index = (int)entry[1];
+            for(int n = length - 1; n >= 0; --n) {
+                if(names.length() > 0) {
+                    names.insert(0, " -> ");
+                }
+                names.insert(0, Instruction.name(index % KEYS));
+                index /= KEYS;
+            }
+            out.append(String.format("  %10d  %5.2f%%  %s\n", entry[0], 100.0 * entry[0] / Math.max(1, this.instructions), names));
+        }
+    }
+    
+    /**
+     * The limit commonest opcodes, pairs and triples, with their share of
+     * all the instructions run.
+     */
+    public String report(int limit) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%d instructions, %d (%.2f%%) run fused without a dispatch of their own.\n",
+                this.instructions, this.fused, 100.0 * this.fused / Math.max(1, this.instructions)));
+        this.report(out, "Opcodes", this.singles, 1, limit);
+        this.report(out, "Pairs", this.pairs, 2, limit);
+        this.report(out, "Triples", this.triples, 3, limit);
+        return out.toString();
+    }
+}
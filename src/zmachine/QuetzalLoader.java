@@ -4,12 +4,14 @@
  */
 package zmachine;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.EOFException;
 import java.io.File;
-import iff.Chunk;
 
 /**
  *
@@ -24,112 +26,145 @@ public class QuetzalLoader {
     
     public void load(File file)
             throws FileNotFoundException, IOException, ZError {
+        // A save of this file may still be waiting to be committed.
+        QuetzalSaver.commitPending();
         FileInputStream f = new FileInputStream(file);
-        
-        Chunk form = new Chunk(f);
-        if(!form.readString(4).equals("IFZS")) {
+        try {
+            byte[] save = new byte[(int)file.length()];
+            new DataInputStream(f).readFully(save);
+            this.load(ByteBuffer.wrap(save));
+        } finally {
+            f.close();
+        }
+    }
+    
+    public void load(InputStream in) throws IOException, ZError {
+        ByteArrayOutputStream save = new ByteArrayOutputStream();
+        byte[] block = new byte[8192];
+        int read;
+        while((read = in.read(block)) > 0) {
+            save.write(block, 0, read);
+        }
+        this.load(ByteBuffer.wrap(save.toByteArray()));
+    }
+    
+    // Reads the save from the buffer's position to its limit. The buffer
+    // itself is left as it was. Chunks are read straight out of the buffer.
+    public void load(ByteBuffer buffer) throws IOException, ZError {
+        ByteBuffer save = buffer.duplicate();
+        if(save.remaining() < 12 || !"FORM".equals(this.readName(save))) {
             throw new QuetzalError("File is not a quetzal save file.");
         }
+        int length = save.getInt();
+        if(!"IFZS".equals(this.readName(save))) {
+            throw new QuetzalError("File is not a quetzal save file.");
+        }
+        if(length < 4 || length - 4 > save.remaining()) {
+            throw new QuetzalError("Save file is truncated.");
+        }
+        save.limit(save.position() + length - 4);
         
-        while(true) {
-            Chunk chunk;
-            try {
-                chunk = new Chunk(form);
-            } catch(EOFException e) {
-                break;
+        while(save.remaining() >= 8) {
+            String name = this.readName(save);
+            int size = save.getInt();
+            if(size < 0 || size > save.remaining()) {
+                throw new QuetzalError("Save file is truncated.");
             }
+            ByteBuffer chunk = save.slice();
+            chunk.limit(size);
+            save.position(Math.min(save.limit(), save.position() + size + (size & 1)));
             
-            String name = chunk.getName();
             if("IFhd".equals(name)) this.headerChunk(chunk);
             else if("CMem".equals(name)) this.compressedMemoryChunk(chunk);
             else if("UMem".equals(name)) this.uncompressedMemoryChunk(chunk);
             else if("Stks".equals(name)) this.stacksChunk(chunk);
-            else chunk.skip();
         }
     }
     
-    private void headerChunk(Chunk chunk) throws IOException, ZError {
-        int release = chunk.readUnsignedShort();
-        short[] serial = chunk.read(6);
-        int checksum = chunk.readUnsignedShort();
-        short[] pcBytes = chunk.read(3);
-        int pc = (pcBytes[0] << 16) | (pcBytes[1] << 8) | pcBytes[2];
+    private String readName(ByteBuffer buffer) {
+        char[] name = new char[4];
+        for(int i = 0; i < 4; ++i) {
+            name[i] = (char)(buffer.get() & 0xFF);
+        }
+        return new String(name);
+    }
+    
+    private void headerChunk(ByteBuffer chunk) throws ZError {
+        if(chunk.remaining() < 13) {
+            throw new QuetzalError("Bad save data");
+        }
+        int release = chunk.getShort() & 0xFFFF;
+        chunk.position(chunk.position() + 6); // Serial number
+        int checksum = chunk.getShort() & 0xFFFF;
+        int pc = ((chunk.get() & 0xFF) << 16) | ((chunk.get() & 0xFF) << 8) | (chunk.get() & 0xFF);
         if(this.machine.unsignedNumber(0x02) != release || 
                 checksum != this.machine.unsignedNumber(0x1C)) {
             throw new QuetzalError("Wrong game");
         }
         
-        this.machine.init();
+        // Everything else is relative to the story as it started, which we
+        // already have in memory, so there's no need to reload it.
+        this.machine.resetToPristine();
         this.machine.pc = pc - 1; // We disagree on where pc should be counted.
-        chunk.close();
+        this.machine.checking = true; // The rest of the save instruction is somewhere else.
     }
     
-    private void compressedMemoryChunk(Chunk chunk) throws IOException, ZError {
-        short[] cmem = chunk.read();
+    // Memory has just been reset, so every byte XORs against the original.
+    private void compressedMemoryChunk(ByteBuffer chunk) throws ZError {
+        int end = this.machine.memoryDynamicEnd;
         int pointer = 0;
-        boolean skipping = false;
-        for(short b : cmem) {
-            if(b != 0 && !skipping) {
-                this.machine.memory[pointer++] ^= b;
-            } else {
-                skipping = !skipping;
-                if(skipping) {
-                    ++pointer;
-                } else {
-                    pointer += b;
+        while(chunk.hasRemaining()) {
+            int b = chunk.get() & 0xFF;
+            if(b == 0) {
+                if(!chunk.hasRemaining()) {
+                    throw new QuetzalError("Bad save data");
                 }
+                pointer += 1 + (chunk.get() & 0xFF);
+                continue;
             }
+            if(pointer >= end) {
+                throw new QuetzalError("Save data overruns dynamic memory area.");
+            }
+            this.machine.setByte(pointer, this.machine.getByte(pointer) ^ b);
+            ++pointer;
         }
-        
-        if(skipping) {
-            throw new QuetzalError("Bad save data");
-        }
-        if(pointer > this.machine.memoryDynamicEnd) {
+        if(pointer > end) {
             throw new QuetzalError("Save data overruns dynamic memory area.");
         }
-        
-        chunk.close();
     }
     
-    private void uncompressedMemoryChunk(Chunk chunk) throws IOException, ZError {
-        short[] umem = chunk.read();
-        if(umem.length != this.machine.memoryDynamicEnd) {
+    private void uncompressedMemoryChunk(ByteBuffer chunk) throws ZError {
+        int end = this.machine.memoryDynamicEnd;
+        if(chunk.remaining() != end) {
             throw new QuetzalError("Uncompressed memory image is the wrong size.");
         }
-        System.arraycopy(umem, 0, this.machine.memory, 0, umem.length);
-        
-        chunk.close();
+        for(int i = 0; i < end; ++i) {
+            this.machine.setByte(i, chunk.get());
+        }
     }
     
-    private void stacksChunk(Chunk chunk) throws IOException, ZError {
-        while(true) {
-            short[] pcArray;
-            try {
-                pcArray = chunk.read(3);
-            } catch(EOFException e) {
-                break;
-            }
-            int pc = (pcArray[0] << 16) | (pcArray[1] << 8) | pcArray[2];
-            short flags = chunk.readUnsignedByte();
-            boolean discardResult = (flags & 0x10) == 0x10;
+    // Frames go straight onto the machine's stacks.
+    private void stacksChunk(ByteBuffer chunk) throws ZError {
+        while(chunk.remaining() >= 8) {
+            int pc = ((chunk.get() & 0xFF) << 16) | ((chunk.get() & 0xFF) << 8) | (chunk.get() & 0xFF);
+            int flags = chunk.get() & 0xFF;
             int localCount = flags & 0x0F;
-            short returnVariable = chunk.readUnsignedByte();
-            short argsSupplied = chunk.readUnsignedByte();
-            int stackSize = chunk.readUnsignedShort();
-            int[] locals = chunk.readUnsignedShorts(localCount);
-            int[] stack = chunk.readUnsignedShorts(stackSize);
+            int returnVariable = chunk.get() & 0xFF;
+            int argsSupplied = chunk.get() & 0xFF;
+            int stackSize = chunk.getShort() & 0xFFFF;
+            int words = localCount + stackSize;
+            if(chunk.remaining() < words * 2) {
+                throw new QuetzalError("Bad save data");
+            }
             
             if(pc > 0) {
-                this.machine.callStack[this.machine.callStackPointer++] = (argsSupplied << 8) | localCount;
-                this.machine.callStack[this.machine.callStackPointer++] = returnVariable;
-                this.machine.callStack[this.machine.callStackPointer++] = pc - 1;
-                this.machine.callStack[this.machine.callStackPointer++] = this.machine.stackPointer;
-            }
-            for(int var : locals) {
-                this.machine.stack[this.machine.stackPointer++] = var;
+                this.machine.pushFrame((argsSupplied << 8) | localCount, returnVariable,
+                        pc - 1, this.machine.stackPointer);
             }
-            for(int word : stack) {
-                this.machine.stack[this.machine.stackPointer++] = word;
+            this.machine.reserveStack(words);
+            int[] stack = this.machine.stack;
+            for(int i = 0; i < words; ++i) {
+                stack[this.machine.stackPointer++] = chunk.getShort() & 0xFFFF;
             }
         }
     }
@@ -1,105 +1,474 @@
 package zmachine;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
-import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
 import java.io.IOException;
-import java.io.EOFException;
+import java.io.OutputStream;
 import java.io.File;
-import org.apache.commons.collections.primitives.ArrayUnsignedByteList;
-import org.apache.commons.collections.primitives.ArrayUnsignedShortList;
-import iff.OutputChunk;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class QuetzalSaver {
     private ZMachine machine;
-    private short[] originalImage;
+    
+    // CMem is built a page at a time against the machine's pristine pages.
+    // The encoding of each page is kept along with the snapshot page it was
+    // made from; if the machine's snapshot still has that same page at the
+    // next save, the page hasn't been written and the encoding is reused.
+    private short[][] pristinePages;
+    private short[][] encodedPages;
+    private CMem.Page[] encodings;
     
     public static final boolean COMPRESS_SAVE_FILES = true;
+    // If set, saves to files and stores are written on a background thread
+    // while the story carries on, and reported as comments once they are
+    // done. Off unless asked for, because the story is told the save worked
+    // before it has.
+    public static final boolean SAVE_IN_BACKGROUND = Boolean.getBoolean("zmachine.saveInBackground");
+    // The chunks of a save, in the order writeChunk writes them.
+    private static final String[] CHUNKS = { "IFhd", COMPRESS_SAVE_FILES ? "CMem" : "UMem", "Stks", "ANNO", "AUTH" };
+    
+    // How hard we try to make sure a save has reached the disk before it
+    // replaces the old file:
+    // SYNC_NONE leaves it to the OS.
+    // SYNC_EACH fsyncs every save before renaming it into place.
+    // SYNC_GROUP hands finished saves to a background thread that fsyncs
+    // and renames them in batches every GROUP_COMMIT_INTERVAL ms.
+    // Whatever the policy, saves are written to a temporary file and renamed
+    // over the old one, so a crash mid-save never leaves a half-written file.
+    public static final int SYNC_NONE = 0;
+    public static final int SYNC_EACH = 1;
+    public static final int SYNC_GROUP = 2;
+    public static final int GROUP_COMMIT_INTERVAL = 200;
+    private static volatile int syncPolicy = SYNC_EACH;
+    
+    // Saves are streamed out through this, rather than being assembled in
+    // memory first; see writeForm.
+    public static final int BUFFER_SIZE = 8192;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
     
     public QuetzalSaver(ZMachine z) {
         this.machine = z;
-        short[] initialState = z.loadStory();
-        this.originalImage = new short[this.machine.memoryDynamicEnd];
-        System.arraycopy(initialState, 0, this.originalImage, 0, this.machine.memoryDynamicEnd);
-        initialState = null;
+    }
+    
+    public static void setSyncPolicy(int policy) {
+        syncPolicy = policy;
     }
     
     public void writeSave(File file) throws IOException, ZError {
-        FileOutputStream f = new FileOutputStream(file);
+        this.writeSave(this.machine.snapshot(), this.machine.pristinePages, file, null);
+    }
+    
+    public void writeSave(SaveStore store, String key) throws IOException, ZError {
+        this.writeSave(this.machine.snapshot(), this.machine.pristinePages, store, key);
+    }
+    
+    // Writes the save to the stream, which is left open.
+    public void writeSave(OutputStream out) throws IOException, ZError {
+        this.writeSave(this.machine.snapshot(), this.machine.pristinePages, Channels.newChannel(out));
+    }
+    
+    // Returns the save, ready to be read from.
+    public ByteBuffer writeSave() throws IOException, ZError {
+        return ByteBuffer.wrap(this.toByteArray(this.machine.snapshot(), this.machine.pristinePages));
+    }
+    
+    /**
+     * Takes a snapshot now and writes it out on a background thread, so the
+     * caller doesn't wait on the disk. Success or failure is reported to io
+     * as a comment once the save is in place, which under SYNC_GROUP is
+     * only after its group has been committed.
+     */
+    public void writeSaveInBackground(final File file, final ZIO io) {
+        final ZSnapshot snapshot = this.machine.snapshot();
+        final short[][] pristinePages = this.machine.pristinePages;
+        BackgroundSaves.submit(file.getAbsoluteFile().hashCode(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSave(snapshot, pristinePages, file, io);
+                } catch(IOException e) {
+                    io.outputComment("Couldn't write to file: " + e.getMessage());
+                } catch(RuntimeException e) {
+                    io.outputComment("Couldn't save: " + e);
+                }
+            }
+        });
+    }
+    
+    // As above, but into a save store.
+    public void writeSaveInBackground(final SaveStore store, final String key, final ZIO io) {
+        final ZSnapshot snapshot = this.machine.snapshot();
+        final short[][] pristinePages = this.machine.pristinePages;
+        BackgroundSaves.submit(System.identityHashCode(store) * 31 + key.hashCode(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSave(snapshot, pristinePages, store, key);
+                    io.outputComment("Saved.");
+                } catch(IOException e) {
+                    io.outputComment("Couldn't save: " + e.getMessage());
+                } catch(RuntimeException e) {
+                    io.outputComment("Couldn't save: " + e);
+                }
+            }
+        });
+    }
+    
+    // Everything here works from the snapshot rather than the machine, so
+    // it is safe to run while the machine carries on. Synchronized because
+    // the CMem cache and the buffer are shared between saves. If io is given
+    // it is told once the save has replaced the file, or that it couldn't
+    // be committed; failures before then are thrown as usual.
+    synchronized void writeSave(ZSnapshot snapshot, short[][] pristinePages, File file, ZIO io) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        int policy = syncPolicy;
+        FileOutputStream f = new FileOutputStream(temp);
+        try {
+            FileChannel channel = f.getChannel();
+            this.writeForm(channel, snapshot, pristinePages);
+            if(policy == SYNC_EACH) {
+                channel.force(true);
+            }
+        } catch(IOException e) {
+            f.close();
+            temp.delete();
+            throw e;
+        }
+        f.close();
         
-        OutputChunk form = new OutputChunk();
-        form.append("IFZS");
-        form.append(this.generateIFhd());
-        if(COMPRESS_SAVE_FILES) {
-            form.append(this.generateCMem());
+        if(policy == SYNC_GROUP) {
+            GroupCommit.submit(temp, file, io);
         } else {
-            form.append(this.generateUMem());
+            replace(temp, file);
+            if(io != null) {
+                io.outputComment("Saved to " + file.getName() + ".");
+            }
+        }
+    }
+    
+    // Saves in a store are small and written whole, so the form is built in
+    // memory and handed over in one piece.
+    synchronized void writeSave(ZSnapshot snapshot, short[][] pristinePages, SaveStore store, String key) throws IOException {
+        store.write(key, this.toByteArray(snapshot, pristinePages));
+    }
+    
+    synchronized void writeSave(ZSnapshot snapshot, short[][] pristinePages, WritableByteChannel channel) throws IOException {
+        this.writeForm(channel, snapshot, pristinePages);
+    }
+    
+    private byte[] toByteArray(ZSnapshot snapshot, short[][] pristinePages) throws IOException {
+        ByteArrayOutputStream save = new ByteArrayOutputStream();
+        this.writeSave(snapshot, pristinePages, Channels.newChannel(save));
+        return save.toByteArray();
+    }
+    
+    // Writes a complete IFZS form to the channel. Each chunk is generated
+    // twice: once only to count its bytes, so that its header can be
+    // written first, and once into the buffer. Nothing is written until
+    // every chunk has been counted.
+    private void writeForm(WritableByteChannel channel, ZSnapshot snapshot, short[][] pristinePages) throws IOException {
+        int[] lengths = new int[CHUNKS.length];
+        int length = 4;
+        for(int i = 0; i < CHUNKS.length; ++i) {
+            SaveStream count = new SaveStream();
+            this.writeChunk(i, count, snapshot, pristinePages);
+            lengths[i] = count.length();
+            length += 8 + lengths[i] + (lengths[i] & 1);
         }
-        form.append(this.generateStks());
-        form.append(this.generateANNO());
-        form.append(this.generateAUTH());
         
-        f.write(form.getBytes());
+        this.buffer.clear();
+        SaveStream out = new SaveStream(this.buffer, channel);
+        out.append("FORM");
+        out.appendLength(length);
+        out.append("IFZS");
+        for(int i = 0; i < CHUNKS.length; ++i) {
+            out.append(CHUNKS[i]);
+            out.appendLength(lengths[i]);
+            int start = out.length();
+            this.writeChunk(i, out, snapshot, pristinePages);
+            if(out.length() - start != lengths[i]) {
+                throw new IllegalStateException(CHUNKS[i] + " chunk changed length while being written.");
+            }
+            // Chunks are padded to an even length.
+            if((lengths[i] & 1) == 1) {
+                out.append((short)0);
+            }
+        }
+        out.flush();
     }
     
-    private OutputChunk generateIFhd() throws ZError {
-        OutputChunk IFhd = new OutputChunk("IFhd");
-        IFhd.append(this.machine.unsignedNumber(0x02));
-        short[] release = new short[6];
-        System.arraycopy(this.machine.memory, 0x12, release, 0, 6);
-        IFhd.append(release);
-        IFhd.append(this.machine.unsignedNumber(0x1C));
-        int pc = this.machine.pc + 1;
-        IFhd.append(this.pcToArray(pc));
-        return IFhd;
-    }
-    
-    private OutputChunk generateCMem() {
-        ArrayUnsignedByteList cmem = new ArrayUnsignedByteList();
-        boolean running = false;
-        short run = 0;
-        for(int i = 0; i < this.machine.memoryDynamicEnd; ++i) {
-            short xor = (short)(this.originalImage[i] ^ this.machine.memory[i]);
-            if(xor != 0) {
-                if(running) {
-                    running = false;
-                    cmem.add(run);
+    private void writeChunk(int chunk, SaveStream out, ZSnapshot snapshot, short[][] pristinePages) throws IOException {
+        switch(chunk) {
+            case 0:
+                this.writeIFhd(out, snapshot);
+                break;
+            case 1:
+                if(COMPRESS_SAVE_FILES) {
+                    this.writeCMem(out, snapshot, pristinePages);
+                } else {
+                    this.writeUMem(out, snapshot);
                 }
-                cmem.add(xor);
-            } else {
-                if(running) {
-                    ++run;
-                    if(run > 255) {
-                        cmem.add((short)255);
-                        cmem.add((short)0);
-                        run = 0;
+                break;
+            case 2:
+                this.writeStks(out, snapshot);
+                break;
+            case 3:
+                this.writeANNO(out);
+                break;
+            case 4:
+                this.writeAUTH(out);
+                break;
+        }
+    }
+    
+    // Moves a finished save over the target. Rename is atomic on POSIX; on
+    // platforms where it won't replace an existing file we have to delete
+    // the old one first.
+    private static void replace(File temp, File file) throws IOException {
+        if(temp.renameTo(file)) {
+            return;
+        }
+        file.delete();
+        if(!temp.renameTo(file)) {
+            throw new IOException("Couldn't move save into place: " + file.getPath());
+        }
+    }
+    
+    // Makes sure any saves still being written in the background or waiting
+    // for a group commit have made it to disk, so that they can be read
+    // back.
+    public static void commitPending() {
+        BackgroundSaves.await();
+        GroupCommit.commit();
+    }
+    
+    // A few threads shared by every machine, each with its own queue: a
+    // lane. Saves to the same target always go to the same lane, and a
+    // lane writes its saves one at a time in the order they were made, so
+    // an older save can never be moved over a newer one. If saves are
+    // coming in faster than a lane can write them, the machine that asked
+    // waits for room in the queue.
+    private static class BackgroundSaves {
+        public static final int LANES = 2;
+        public static final int QUEUE_LENGTH = 32;
+        
+        private static final ExecutorService[] lanes = new ExecutorService[LANES];
+        private static final Semaphore[] room = new Semaphore[LANES];
+        static {
+            for(int i = 0; i < LANES; ++i) {
+                ThreadPoolExecutor lane = new ThreadPoolExecutor(
+                        1, 1, 1, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                return new Thread(r, "Quetzal background save");
+                            }
+                        });
+                // Let the JVM exit once there's nothing left to write.
+                lane.allowCoreThreadTimeOut(true);
+                lanes[i] = lane;
+                room[i] = new Semaphore(QUEUE_LENGTH);
+            }
+        }
+        
+        private static final ArrayList<Future<?>> inFlight = new ArrayList<Future<?>>();
+        
+        // target identifies where the save is going.
+        static void submit(int target, final Runnable save) {
+            int lane = (target & 0x7FFFFFFF) % LANES;
+            final Semaphore room = BackgroundSaves.room[lane];
+            room.acquireUninterruptibly();
+            track(lanes[lane].submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        save.run();
+                    } finally {
+                        room.release();
                     }
-                } else {
-                    cmem.add((short)0);
-                    running = true;
-                    run = 0;
                 }
+            }));
+        }
+        
+        private static void track(Future<?> save) {
+            synchronized(inFlight) {
+                for(int i = inFlight.size() - 1; i >= 0; --i) {
+                    if(inFlight.get(i).isDone()) {
+                        inFlight.remove(i);
+                    }
+                }
+                inFlight.add(save);
+            }
+        }
+        
+        static void await() {
+            Future<?>[] saves;
+            synchronized(inFlight) {
+                saves = inFlight.toArray(new Future<?>[inFlight.size()]);
+                inFlight.clear();
+            }
+            for(Future<?> save : saves) {
+                try {
+                    save.get();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch(ExecutionException e) {
+                    // Saves report their own IOExceptions and
+                    // RuntimeExceptions, so this is something worse.
+                    java.util.logging.Logger.getLogger(QuetzalSaver.class.getName()).log(
+                            java.util.logging.Level.SEVERE, "Background save failed", e.getCause());
+                }
+            }
+        }
+    }
+    
+    private static class GroupCommit implements Runnable {
+        private static final ArrayList<GroupCommit.Save> pending = new ArrayList<GroupCommit.Save>();
+        private static final Object committing = new Object();
+        private static Thread thread;
+        
+        // A finished save waiting to be committed, and who to tell about it
+        // (if anyone).
+        private static class Save {
+            final File temp;
+            final File file;
+            final ZIO io;
+            
+            Save(File temp, File file, ZIO io) {
+                this.temp = temp;
+                this.file = file;
+                this.io = io;
+            }
+        }
+        
+        static synchronized void submit(File temp, File file, ZIO io) {
+            Save save = new Save(temp, file, io);
+            synchronized(pending) {
+                pending.add(save);
+            }
+            if(thread == null) {
+                thread = new Thread(new GroupCommit(), "Quetzal group commit");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        
+        @Override
+        public void run() {
+            while(true) {
+                try {
+                    Thread.sleep(GROUP_COMMIT_INTERVAL);
+                } catch(InterruptedException e) {
+                    return;
+                }
+                commit();
             }
         }
         
-        if(running) {
-            cmem.add(run);
+        // Saves are committed in the order they were made, so if the same
+        // file was saved twice in a batch the later save wins.
+        static void commit() {
+            synchronized(committing) {
+                Save[] batch;
+                synchronized(pending) {
+                    batch = pending.toArray(new Save[pending.size()]);
+                    pending.clear();
+                }
+                commit(batch);
+            }
         }
         
-        OutputChunk CMem = new OutputChunk("CMem");
-        CMem.append(cmem.toArray());
-        return CMem;
+        private static void commit(Save[] batch) {
+            for(Save save : batch) {
+                try {
+                    RandomAccessFile f = new RandomAccessFile(save.temp, "rw");
+                    try {
+                        f.getChannel().force(true);
+                    } finally {
+                        f.close();
+                    }
+                    replace(save.temp, save.file);
+                } catch(IOException e) {
+                    // Nobody is waiting on this save any more, so all we can
+                    // do is leave the temporary file behind and say so.
+                    java.util.logging.Logger.getLogger(QuetzalSaver.class.getName()).log(
+                            java.util.logging.Level.SEVERE, "Couldn't commit save " + save.file, e);
+                    if(save.io != null) {
+                        save.io.outputComment("Couldn't write to file: " + e.getMessage());
+                    }
+                    continue;
+                }
+                if(save.io != null) {
+                    save.io.outputComment("Saved to " + save.file.getName() + ".");
+                }
+            }
+        }
     }
     
-    private OutputChunk generateUMem() {
-        short[] umem = new short[this.machine.memoryDynamicEnd];
-        System.arraycopy(this.machine.memory, 0, umem, 0, this.machine.memoryDynamicEnd);
-        OutputChunk UMem = new OutputChunk("UMem");
-        UMem.append(umem);
-        return UMem;
+    private void writeIFhd(SaveStream IFhd, ZSnapshot snapshot) throws IOException {
+        // The header is always in the first page of dynamic memory.
+        short[] header = snapshot.pages[0];
+        IFhd.append((header[0x02] << 8) | header[0x03]);
+        short[] release = new short[6];
+        System.arraycopy(header, 0x12, release, 0, 6);
+        IFhd.append(release);
+        IFhd.append((header[0x1C] << 8) | header[0x1D]);
+        int pc = snapshot.pc + 1;
+        IFhd.append(this.pcToArray(pc));
+    }
+    
+    private void writeCMem(SaveStream out, ZSnapshot snapshot, short[][] pristinePages) throws IOException {
+        short[][] pages = snapshot.pages;
+        if(this.pristinePages != pristinePages) {
+            // First save, or the story has been reloaded since.
+            this.pristinePages = pristinePages;
+            this.encodedPages = new short[pages.length][];
+            this.encodings = new CMem.Page[pages.length];
+        }
+        
+        CMem.Writer cmem = new CMem.Writer(out);
+        for(int i = 0; i < pages.length; ++i) {
+            if(pages[i] == this.pristinePages[i]) {
+                // Never written.
+                cmem.zeros(pages[i].length);
+                continue;
+            }
+            if(this.encodedPages[i] != pages[i]) {
+                this.encodings[i] = CMem.encodePage(this.pristinePages[i], pages[i]);
+                this.encodedPages[i] = pages[i];
+            }
+            cmem.page(this.encodings[i]);
+        }
+    }
+    
+    private void writeUMem(SaveStream UMem, ZSnapshot snapshot) throws IOException {
+        // Pages are whole, so the last one runs on past dynamic memory.
+        int remaining = this.machine.memoryDynamicEnd;
+        for(short[] page : snapshot.pages) {
+            UMem.append(page, Math.min(page.length, remaining));
+            remaining -= page.length;
+        }
     }
     
-    private OutputChunk generateStks() {
-        OutputChunk Stks = new OutputChunk("Stks");
+    private void writeStks(SaveStream Stks, ZSnapshot snapshot) throws IOException {
+        int[] stack = snapshot.stack;
+        int[] callStack = snapshot.callStack;
         int callStackPointer = 0;
         int stackPointer = 0;
         
@@ -113,12 +482,12 @@ public class QuetzalSaver {
         short dummyFrameReturnVariable = 0;
         short dummyFrameArgumentMask = 0;
         int dummyFrameStackSize = 0;
-        if(this.machine.callStackPointer > 3) 
-            dummyFrameStackSize = this.machine.callStack[3];
+        if(callStack.length > 3) 
+            dummyFrameStackSize = callStack[3];
         int[] dummyFrameLocalVariables = {};
         int[] dummyFrameStack = new int[dummyFrameStackSize];
         for(int i = 0; i < dummyFrameStackSize; ++i)
-            dummyFrameStack[i] = this.machine.stack[i];
+            dummyFrameStack[i] = stack[i];
         
         Stks.append(dummyFrameReturnPC);
         Stks.append(dummyFrameFlags);
@@ -128,24 +497,24 @@ public class QuetzalSaver {
         Stks.append(dummyFrameLocalVariables);
         Stks.append(dummyFrameStack);
         
-        while(callStackPointer < this.machine.callStackPointer) {
-            short argumentMask = (short)(this.machine.callStack[callStackPointer] >> 8);
-            short localCount = (short)(this.machine.callStack[callStackPointer] & 0x0F);
-            short returnVariable = (short)this.machine.callStack[++callStackPointer];
-            int pc = this.machine.callStack[++callStackPointer] + 1;
-            int stackTop = this.machine.callStack[++callStackPointer];
+        while(callStackPointer < callStack.length) {
+            short argumentMask = (short)(callStack[callStackPointer] >> 8);
+            short localCount = (short)(callStack[callStackPointer] & 0x0F);
+            short returnVariable = (short)callStack[++callStackPointer];
+            int pc = callStack[++callStackPointer] + 1;
+            int stackTop = callStack[++callStackPointer];
             int frameStackSize;
-            if(callStackPointer + 4 >= this.machine.callStackPointer) {
-                frameStackSize = this.machine.stackPointer - stackTop;
+            if(callStackPointer + 4 >= callStack.length) {
+                frameStackSize = stack.length - stackTop;
             } else {
-                frameStackSize = this.machine.callStack[callStackPointer + 4] - stackTop;
+                frameStackSize = callStack[callStackPointer + 4] - stackTop;
             }
             frameStackSize -= localCount;
             
             int[] frameLocals = new int[localCount];
-            System.arraycopy(this.machine.stack, stackTop, frameLocals, 0, localCount);
+            System.arraycopy(stack, stackTop, frameLocals, 0, localCount);
             int[] frameStack = new int[frameStackSize];
-            System.arraycopy(this.machine.stack, stackTop + localCount, frameStack, 0, frameStackSize);
+            System.arraycopy(stack, stackTop + localCount, frameStack, 0, frameStackSize);
             
             Stks.append(this.pcToArray(pc));
             Stks.append(localCount);
@@ -157,20 +526,14 @@ public class QuetzalSaver {
             
             callStackPointer++;
         }
-        
-        return Stks;
     }
     
-    private OutputChunk generateANNO() {
-        OutputChunk ANNO = new OutputChunk("ANNO");
+    private void writeANNO(SaveStream ANNO) throws IOException {
         ANNO.append("Saved by ZProject");
-        return ANNO;
     }
     
-    private OutputChunk generateAUTH() {
-        OutputChunk AUTH = new OutputChunk("AUTH");
+    private void writeAUTH(SaveStream AUTH) throws IOException {
         AUTH.append(System.getProperty("user.name"));
-        return AUTH;
     }
     
     private short[] pcToArray(int pc) {
@@ -0,0 +1,543 @@
+package zmachine;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Translates one routine, as disassembled by the Verifier, into a subclass
+ * of CompiledRoutine. See CompiledRoutine for how the result behaves.
+ *
+ * JVM local 0 is the compiled routine and 1 the machine. The routine's own
+ * locals follow, then a count of instructions run since it was last added
+ * to opcodesExecuted.
+ */
+class RoutineCompiler {
+    // Instructions between safepoints in a loop.
+    public static final int SAFEPOINT_INTERVAL = 10000;
+    
+    private static final String BASE = "zmachine/CompiledRoutine";
+    private static final String MACHINE = "Lzmachine/ZMachine;";
+    
+    private ZMachine z;
+    private Verifier.Routine routine;
+    private int locals;
+    private int countSlot;
+    private ClassFile file;
+    private ClassFile.Code code;
+    // Labels by address, for every instruction a jump can land on.
+    private Map<Integer, Verifier.Block> blocks;
+    private int[] blockLabels;
+    private ArrayList<Integer> blockStarts = new ArrayList<Integer>();
+    // Code that's only reached by jumping, put after the rest.
+    private ArrayList<Runnable> stubs = new ArrayList<Runnable>();
+    private int returnFalse = -1;
+    private int returnTrue = -1;
+    
+    RoutineCompiler(ZMachine z, Verifier.Routine routine) {
+        this.z = z;
+        this.routine = routine;
+        this.locals = z.getByte(routine.address);
+        this.countSlot = this.locals + 2;
+        this.blocks = routine.blocks;
+    }
+    
+    public byte[] compile(String name) {
+        this.file = new ClassFile(name, BASE);
+        
+        ClassFile.Code init = new ClassFile.Code(this.file, 2);
+        init.op(ClassFile.ALOAD_0);
+        init.op(ClassFile.ILOAD_1);
+        init.invokeSpecial(BASE, "<init>", "(I)V");
+        init.op(ClassFile.RETURN);
+        this.file.addMethod(ClassFile.ACC_PUBLIC, "<init>", "(I)V", init);
+        
+        this.code = new ClassFile.Code(this.file, this.countSlot + 1);
+        for(int address : this.blocks.keySet()) {
+            this.blockStarts.add(address);
+        }
+        this.blockLabels = new int[this.blockStarts.size()];
+        for(int i = 0; i < this.blockLabels.length; ++i) {
+            this.blockLabels[i] = this.code.newLabel();
+        }
+        
+        this.loadLocals();
+        this.code.pushInt(0);
+        this.code.istore(this.countSlot);
+        if(this.blockStarts.isEmpty() || this.blockStarts.get(0) != this.routine.entry) {
+            this.jumpTo(ClassFile.GOTO, this.routine.entry, -1);
+        }
+        for(int b = 0; b < this.blockStarts.size(); ++b) {
+            Verifier.Block block = this.blocks.get(this.blockStarts.get(b));
+            this.code.place(this.blockLabels[b]);
+            Instruction last = null;
+            for(Instruction i : block.code) {
+                this.compile(i);
+                last = i;
+            }
+            if(last != null && !last.isTerminator()) {
+                boolean adjacent = b + 1 < this.blockStarts.size() && this.blockStarts.get(b + 1) == last.next();
+                if(!adjacent) {
+                    this.jumpTo(ClassFile.GOTO, last.next(), last.address);
+                }
+            }
+        }
+        // Stubs can add more stubs.
+        for(int i = 0; i < this.stubs.size(); ++i) {
+            this.stubs.get(i).run();
+        }
+        this.file.addMethod(ClassFile.ACC_PUBLIC, "run", "(" + MACHINE + ")V", this.code);
+        return this.file.toByteArray();
+    }
+    
+    private int slot(int local) {
+        return local + 1;
+    }
+    
+    private boolean isLocal(int variable) {
+        return variable >= 1 && variable <= this.locals;
+    }
+    
+    private void invoke(String name, String descriptor) {
+        this.code.op(ClassFile.ALOAD_1);
+        this.code.invokeStatic(BASE, name, descriptor);
+    }
+    
+    private void loadLocals() {
+        for(int local = 1; local <= this.locals; ++local) {
+            this.code.pushInt(local);
+            this.invoke("getLocal", "(I" + MACHINE + ")I");
+            this.code.istore(this.slot(local));
+        }
+    }
+    
+    private void storeLocals() {
+        for(int local = 1; local <= this.locals; ++local) {
+            this.code.iload(this.slot(local));
+            this.code.pushInt(local);
+            this.invoke("setLocal", "(II" + MACHINE + ")V");
+        }
+    }
+    
+    private void flushCount() {
+        this.code.iload(this.countSlot);
+        this.invoke("addCount", "(I" + MACHINE + ")V");
+        this.code.pushInt(0);
+        this.code.istore(this.countSlot);
+    }
+    
+    // Leaves the compiled code with pc at address.
+    private void exit(int address) {
+        this.storeLocals();
+        this.flushCount();
+        this.code.pushInt(address);
+        this.invoke("exit", "(I" + MACHINE + ")V");
+        this.code.op(ClassFile.RETURN);
+    }
+    
+    private int blockLabel(int address) {
+        int index = this.blockStarts.indexOf(address);
+        return index < 0 ? -1 : this.blockLabels[index];
+    }
+    
+    // Jumps with opcode (GOTO, or a test of the value on the stack) to the
+    // instruction at target, from the instruction at from. Backward jumps
+    // go through a safepoint; jumps out of the compiled code exit.
+    private void jumpTo(int opcode, final int target, int from) {
+        final int label = this.blockLabel(target);
+        final int stub = this.code.newLabel();
+        if(label >= 0 && target > from) {
+            this.code.jump(opcode, label);
+            return;
+        }
+        this.code.jump(opcode, stub);
+        this.stubs.add(new Runnable() {
+            @Override
+            public void run() {
+                code.place(stub);
+                if(label < 0) {
+                    exit(target);
+                    return;
+                }
+                int exit = code.newLabel();
+                code.iload(countSlot);
+                code.pushInt(SAFEPOINT_INTERVAL);
+                code.jump(ClassFile.IF_ICMPLT, label);
+                code.iload(countSlot);
+                invoke("safepoint", "(I" + MACHINE + ")Z");
+                code.pushInt(0);
+                code.istore(countSlot);
+                code.jump(ClassFile.IFEQ, exit);
+                code.jump(ClassFile.GOTO, label);
+                code.place(exit);
+                exit(target);
+            }
+        });
+    }
+    
+    private void returnValue(int value) {
+        this.code.pushInt(value);
+        this.code.iload(this.countSlot);
+        this.invoke("ret", "(II" + MACHINE + ")V");
+        this.code.op(ClassFile.RETURN);
+    }
+    
+    // Branches on the boolean on the stack.
+    private void branch(Instruction i) {
+        this.branch(i, i.branchOn ? ClassFile.IFNE : ClassFile.IFEQ);
+    }
+    
+    // Branches if opcode's test of the value on the stack succeeds.
+    private void branch(Instruction i, int opcode) {
+        if(i.branchOffset == 0 || i.branchOffset == 1) {
+            if(i.branchOffset == 0 && this.returnFalse < 0) {
+                this.returnFalse = this.returnStub(0);
+            } else if(i.branchOffset == 1 && this.returnTrue < 0) {
+                this.returnTrue = this.returnStub(1);
+            }
+            this.code.jump(opcode, i.branchOffset == 0 ? this.returnFalse : this.returnTrue);
+        } else {
+            this.jumpTo(opcode, i.target(), i.address);
+        }
+    }
+    
+    private int returnStub(final int value) {
+        final int label = this.code.newLabel();
+        this.stubs.add(new Runnable() {
+            @Override
+            public void run() {
+                code.place(label);
+                returnValue(value);
+            }
+        });
+        return label;
+    }
+    
+    private void operand(Instruction i, int n) {
+        if(i.isConstant(n)) {
+            this.code.pushInt(i.operands[n]);
+        } else {
+            this.readVariable(i.operands[n]);
+        }
+    }
+    
+    private void operands(Instruction i, int from) {
+        for(int n = from; n < i.argCount; ++n) {
+            this.operand(i, n);
+        }
+    }
+    
+    // Pushes a variable's value, as getVariable would return it.
+    private void readVariable(int variable) {
+        if(this.isLocal(variable)) {
+            this.code.iload(this.slot(variable));
+            this.code.pushInt(0xFFFF);
+            this.code.op(ClassFile.IAND);
+        } else {
+            this.code.pushInt(variable);
+            this.invoke("getVariable", "(I" + MACHINE + ")I");
+        }
+    }
+    
+    // Pops a value into a variable, as setVariable would store it.
+    private void writeVariable(int variable) {
+        if(this.isLocal(variable)) {
+            this.code.istore(this.slot(variable));
+        } else {
+            this.code.pushInt(variable);
+            this.invoke("setVariable", "(II" + MACHINE + ")V");
+        }
+    }
+    
+    // Calls a helper taking the instruction's operands, and stores the
+    // result.
+    private void storeOp(Instruction i, String helper, String descriptor) {
+        this.operands(i, 0);
+        this.invoke(helper, descriptor);
+        this.writeVariable(i.store);
+    }
+    
+    private void branchOp(Instruction i, String helper, String descriptor) {
+        this.operands(i, 0);
+        if(helper != null) {
+            this.invoke(helper, descriptor);
+        }
+        this.branch(i);
+    }
+    
+    private static String ints(int count, String result) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for(int n = 0; n < count; ++n) {
+            descriptor.append('I');
+        }
+        return descriptor.append(MACHINE).append(')').append(result).toString();
+    }
+    
+    private static String pure(int count, String result) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for(int n = 0; n < count; ++n) {
+            descriptor.append('I');
+        }
+        return descriptor.append(')').append(result).toString();
+    }
+    
+    private void pureOp(Instruction i, String helper, String result) {
+        this.operands(i, 0);
+        this.code.invokeStatic(BASE, helper, pure(i.argCount, result));
+        if(result.equals("Z")) {
+            this.branch(i);
+        } else {
+            this.writeVariable(i.store);
+        }
+    }
+    
+    private void compile(Instruction i) {
+        // Indirect variable references and anything that isn't simple
+        // arithmetic, control flow or memory access is left to the
+        // interpreter.
+        if(!this.compileNative(i)) {
+            this.storeLocals();
+            this.flushCount();
+            int ok = this.code.newLabel();
+            this.code.pushInt(i.address);
+            this.code.pushInt(i.next());
+            this.invoke("step", "(II" + MACHINE + ")Z");
+            this.code.jump(ClassFile.IFNE, ok);
+            this.code.op(ClassFile.RETURN);
+            this.code.place(ok);
+            this.loadLocals();
+        }
+    }
+    
+    private boolean compileNative(Instruction i) {
+        boolean checking = this.z.verified == null || !this.z.verified[i.address];
+        if(i.variable) {
+            switch(i.opcode) {
+                case 0: // call
+                    if(i.argCount == 0) {
+                        return false;
+                    }
+                    this.compileCall(i);
+                    return true;
+                case 1: // storew
+                case 2: // storeb
+                    if(i.argCount != 3) {
+                        return false;
+                    }
+                    this.count();
+                    this.operands(i, 0);
+                    this.code.pushInt(checking ? 1 : 0);
+                    this.invoke(i.opcode == 1 ? "storew" : "storeb", "(IIIZ" + MACHINE + ")V");
+                    return true;
+                case 3: // put_prop
+                    if(i.argCount != 3) {
+                        return false;
+                    }
+                    this.count();
+                    this.operands(i, 0);
+                    this.invoke("putProp", ints(3, "V"));
+                    return true;
+                case 8: // push
+                    if(i.argCount != 1) {
+                        return false;
+                    }
+                    this.count();
+                    this.operands(i, 0);
+                    this.invoke("push", ints(1, "V"));
+                    return true;
+                case 9: // pull
+                    if(i.argCount != 1 || !i.isConstant(0)) {
+                        return false;
+                    }
+                    this.count();
+                    this.code.op(ClassFile.ALOAD_1);
+                    this.code.invokeStatic(BASE, "pop", "(" + MACHINE + ")I");
+                    this.writeVariable(i.operands[0]);
+                    return true;
+            }
+            return false;
+        }
+        switch(i.argCount) {
+            case 0:
+                switch(i.opcode) {
+                    case 0: // rtrue
+                    case 1: // rfalse
+                        this.count();
+                        this.returnValue(i.opcode == 0 ? 1 : 0);
+                        return true;
+                    case 4: // nop
+                        this.count();
+                        return true;
+                    case 8: // ret_popped
+                        this.count();
+                        this.code.op(ClassFile.ALOAD_1);
+                        this.code.invokeStatic(BASE, "pop", "(" + MACHINE + ")I");
+                        this.code.iload(this.countSlot);
+                        this.invoke("ret", "(II" + MACHINE + ")V");
+                        this.code.op(ClassFile.RETURN);
+                        return true;
+                    case 9: // pop
+                        this.count();
+                        this.code.op(ClassFile.ALOAD_1);
+                        this.code.invokeStatic(BASE, "pop", "(" + MACHINE + ")I");
+                        this.code.op(ClassFile.POP);
+                        return true;
+                }
+                return false;
+            case 1:
+                switch(i.opcode) {
+                    case 0: // jz
+                        this.count();
+                        this.operand(i, 0);
+                        this.branch(i, i.branchOn ? ClassFile.IFEQ : ClassFile.IFNE);
+                        return true;
+                    case 1: // get_sibling
+                    case 2: // get_child
+                        this.count();
+                        this.operands(i, 0);
+                        this.invoke(i.opcode == 1 ? "getSibling" : "getChild", ints(1, "I"));
+                        this.code.op(ClassFile.DUP);
+                        this.writeVariable(i.store);
+                        this.branch(i);
+                        return true;
+                    case 3: // get_parent
+                        this.count();
+                        this.storeOp(i, "getParent", ints(1, "I"));
+                        return true;
+                    case 5: // inc
+                    case 6: // dec
+                        if(!i.isConstant(0)) {
+                            return false;
+                        }
+                        this.count();
+                        this.readVariable(i.operands[0]);
+                        this.code.pushInt(1);
+                        this.code.op(i.opcode == 5 ? ClassFile.IADD : ClassFile.ISUB);
+                        this.writeVariable(i.operands[0]);
+                        return true;
+                    case 11: // ret
+                        this.count();
+                        this.operand(i, 0);
+                        this.code.iload(this.countSlot);
+                        this.invoke("ret", "(II" + MACHINE + ")V");
+                        this.code.op(ClassFile.RETURN);
+                        return true;
+                    case 12: // jump
+                        if(!i.isConstant(0)) {
+                            return false;
+                        }
+                        this.count();
+                        this.jumpTo(ClassFile.GOTO, i.target(), i.address);
+                        return true;
+                    case 14: // load
+                        if(!i.isConstant(0)) {
+                            return false;
+                        }
+                        this.count();
+                        this.readVariable(i.operands[0]);
+                        this.writeVariable(i.store);
+                        return true;
+                    case 15: // not
+                        this.count();
+                        this.pureOp(i, "not", "I");
+                        return true;
+                }
+                return false;
+            case 2:
+                switch(i.opcode) {
+                    case 1: this.count(); this.pureOp(i, "je", "Z"); return true;
+                    case 2: this.count(); this.pureOp(i, "jl", "Z"); return true;
+                    case 3: this.count(); this.pureOp(i, "jg", "Z"); return true;
+                    case 4: // dec_chk
+                    case 5: // inc_chk
+                        if(!i.isConstant(0)) {
+                            return false;
+                        }
+                        this.count();
+                        this.operand(i, 1);
+                        this.readVariable(i.operands[0]);
+                        this.code.pushInt(1);
+                        this.code.op(i.opcode == 5 ? ClassFile.IADD : ClassFile.ISUB);
+                        this.code.op(ClassFile.I2S);
+                        this.code.op(ClassFile.DUP_X1);
+                        this.writeVariable(i.operands[0]);
+                        // The stack is now new value, limit: the same order
+                        // as the interpreter compares them.
+                        this.code.invokeStatic(BASE, i.opcode == 5 ? "jg" : "jl", pure(2, "Z"));
+                        this.branch(i);
+                        return true;
+                    case 6: this.count(); this.branchOp(i, "jin", ints(2, "Z")); return true;
+                    case 7: this.count(); this.pureOp(i, "test", "Z"); return true;
+                    case 8: this.count(); this.pureOp(i, "or", "I"); return true;
+                    case 9: this.count(); this.pureOp(i, "and", "I"); return true;
+                    case 10: this.count(); this.branchOp(i, "testAttr", ints(2, "Z")); return true;
+                    case 11:
+                    case 12:
+                        this.count();
+                        this.operands(i, 0);
+                        this.invoke(i.opcode == 11 ? "setAttr" : "clearAttr", ints(2, "V"));
+                            return true;
+                    case 13: // store
+                        if(!i.isConstant(0)) {
+                            return false;
+                        }
+                        this.count();
+                        this.operand(i, 1);
+                        this.writeVariable(i.operands[0]);
+                        return true;
+                    case 15: // loadw
+                    case 16: // loadb
+                        this.count();
+                        this.operands(i, 0);
+                        this.code.pushInt(checking ? 1 : 0);
+                        this.invoke(i.opcode == 15 ? "loadw" : "loadb", "(IIZ" + MACHINE + ")I");
+                        this.writeVariable(i.store);
+                        return true;
+                    case 17: this.count(); this.storeOp(i, "getProp", ints(2, "I")); return true;
+                    case 18: this.count(); this.storeOp(i, "getPropAddr", ints(2, "I")); return true;
+                    case 20: this.count(); this.pureOp(i, "add", "I"); return true;
+                    case 21: this.count(); this.pureOp(i, "sub", "I"); return true;
+                    case 22: this.count(); this.pureOp(i, "mul", "I"); return true;
+                    case 23:
+                        this.count();
+                        this.operands(i, 0);
+                        this.code.invokeStatic(BASE, "div", pure(2, "I"));
+                        this.writeVariable(i.store);
+                        return true;
+                }
+                return false;
+            case 3:
+            case 4:
+                if(i.opcode != 1) {
+                    return false;
+                }
+                this.count();
+                this.pureOp(i, "je", "Z");
+                return true;
+        }
+        return false;
+    }
+    
+    private void count() {
+        this.code.iinc(this.countSlot, 1);
+    }
+    
+    private void compileCall(Instruction i) {
+        this.code.pushInt(i.argCount);
+        this.code.op(ClassFile.NEWARRAY, ClassFile.T_INT);
+        for(int n = 0; n < i.argCount; ++n) {
+            this.code.op(ClassFile.DUP);
+            this.code.pushInt(n);
+            this.operand(i, n);
+            this.code.op(ClassFile.IASTORE);
+        }
+        this.storeLocals();
+        this.flushCount();
+        int ok = this.code.newLabel();
+        this.code.pushInt(i.next() - 2);
+        this.invoke("call", "([II" + MACHINE + ")Z");
+        this.code.jump(ClassFile.IFNE, ok);
+        this.code.op(ClassFile.RETURN);
+        this.code.place(ok);
+        this.loadLocals();
+    }
+}
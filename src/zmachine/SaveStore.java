@@ -0,0 +1,18 @@
+package zmachine;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Somewhere to keep saves other than one file per save. Saves are complete
+ * Quetzal files, stored under a key (usually a session id); writing a key
+ * again replaces whatever was there before.
+ */
+public interface SaveStore {
+    public void write(String key, byte[] save) throws IOException;
+    
+    // Returns null if nothing has been saved under the key.
+    public InputStream read(String key) throws IOException;
+    
+    public void close() throws IOException;
+}
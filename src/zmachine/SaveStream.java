@@ -0,0 +1,116 @@
+package zmachine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where QuetzalSaver writes a save, a byte at a time, the same way as an
+ * iff.OutputChunk: shorts are written as single bytes, ints as big-endian
+ * words. The bytes go into a buffer, which is written to the channel each
+ * time it fills, so a save is never held in memory whole.
+ *
+ * Without a buffer nothing is written at all, and the stream only counts
+ * the bytes; that's how the saver finds out how long each chunk will be
+ * before it writes the chunk's header.
+ */
+class SaveStream extends OutputStream {
+    private final ByteBuffer buffer;
+    private final WritableByteChannel channel;
+    private int length;
+    
+    // Only counts.
+    SaveStream() {
+        this(null, null);
+    }
+    
+    SaveStream(ByteBuffer buffer, WritableByteChannel channel) {
+        this.buffer = buffer;
+        this.channel = channel;
+    }
+    
+    // Bytes written so far.
+    int length() {
+        return this.length;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        ++this.length;
+        if(this.buffer == null) {
+            return;
+        }
+        if(!this.buffer.hasRemaining()) {
+            this.flush();
+        }
+        this.buffer.put((byte)b);
+    }
+    
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        this.length += count;
+        if(this.buffer == null) {
+            return;
+        }
+        while(count > 0) {
+            if(!this.buffer.hasRemaining()) {
+                this.flush();
+            }
+            int n = Math.min(this.buffer.remaining(), count);
+            this.buffer.put(bytes, offset, n);
+            offset += n;
+            count -= n;
+        }
+    }
+    
+    // Writes out whatever is in the buffer.
+    @Override
+    public void flush() throws IOException {
+        if(this.buffer == null) {
+            return;
+        }
+        this.buffer.flip();
+        while(this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+    
+    void append(short value) throws IOException {
+        this.write(value);
+    }
+    
+    void append(int value) throws IOException {
+        this.write(value >> 8);
+        this.write(value);
+    }
+    
+    void append(short[] values) throws IOException {
+        this.append(values, values.length);
+    }
+    
+    void append(short[] values, int length) throws IOException {
+        for(int i = 0; i < length; ++i) {
+            this.append(values[i]);
+        }
+    }
+    
+    void append(int[] values) throws IOException {
+        for(int value : values) {
+            this.append(value);
+        }
+    }
+    
+    void append(String text) throws IOException {
+        for(int i = 0; i < text.length(); ++i) {
+            this.write(text.charAt(i));
+        }
+    }
+    
+    // A 32-bit IFF length.
+    void appendLength(int length) throws IOException {
+        this.append(length >> 16);
+        this.append(length);
+    }
+}
@@ -0,0 +1,16 @@
+package zmachine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ZIO that also implements this keeps saves itself, as bytes, instead of
+ * having the machine ask for a file. Useful when the saves belong in memory
+ * or in somebody else's storage.
+ */
+public interface SaveTarget {
+    // Called with a complete save. Returns false if it couldn't be kept.
+    public boolean saveBytes(ByteBuffer save);
+    
+    // Returns the save to restore, or null if there isn't one.
+    public ByteBuffer restoreBytes();
+}
@@ -0,0 +1,194 @@
+package zmachine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compiles every routine the Verifier can find in a story ahead of time,
+ * and writes them to a jar along with the story and the interpreter, so
+ * that the story can be played without waiting for the Jit to warm up.
+ * CompiledStory runs the result.
+ *
+ * Routines in dynamic memory, and any the Verifier can't find or the
+ * compiler can't handle, are left to the interpreter (and to the Jit, if
+ * they turn out to be hot).
+ */
+public class StoryCompiler {
+    public static final String PACKAGE = "zmachine/compiled/";
+    // Resources in the jar.
+    public static final String STORY = PACKAGE + "story.z";
+    // The address of each compiled routine, one per line.
+    public static final String INDEX = PACKAGE + "routines";
+    
+    private File story;
+    private Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+    private StringBuilder index = new StringBuilder();
+    private int interpreted;
+    private int failures;
+    
+    public StoryCompiler(File story) {
+        this.story = story;
+    }
+    
+    public static String className(int routine) {
+        return String.format(PACKAGE + "Routine%05x", routine);
+    }
+    
+    public void compile() throws ZError, IOException {
+        ZMachine z = new ZMachine(null, this.story); // Never run
+        if(!z.init()) {
+            throw new IOException("Couldn't read " + this.story);
+        }
+        Verifier verifier = new Verifier(z);
+        verifier.verify();
+        for(Verifier.Routine routine : verifier.getRoutines().values()) {
+            // This includes the main routine, which has no header.
+            if(routine.address < z.memoryDynamicEnd) {
+                ++this.interpreted;
+                continue;
+            }
+            String name = className(routine.address);
+            try {
+                this.classes.put(name, new RoutineCompiler(z, routine).compile(name));
+            } catch(RuntimeException e) {
+                ++this.failures;
+                Logger.getLogger(StoryCompiler.class.getName()).log(Level.WARNING,
+                        String.format("Couldn't compile the routine at %d", routine.address), e);
+                continue;
+            }
+            this.index.append(String.format("%d\n", routine.address));
+        }
+    }
+    
+    /**
+     * Writes the compiled routines to a jar, with the story, everything on
+     * the class path, and a manifest that runs mainClass.
+     */
+    public void write(File jar, String mainClass) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+        HashSet<String> written = new HashSet<String>();
+        try {
+            for(Map.Entry<String, byte[]> entry : this.classes.entrySet()) {
+                this.add(out, written, entry.getKey() + ".class", entry.getValue());
+            }
+            this.add(out, written, INDEX, this.index.toString().getBytes("UTF-8"));
+            this.add(out, written, STORY, this.readStory());
+            // The interpreter, and whatever it needs.
+            for(String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                File entry = new File(path);
+                if(entry.isDirectory()) {
+                    this.addDirectory(out, written, entry, "");
+                } else if(entry.isFile() && !entry.getCanonicalFile().equals(jar.getCanonicalFile())) {
+                    this.addJar(out, written, entry);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    private byte[] readStory() throws IOException {
+        byte[] bytes = new byte[(int)this.story.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(this.story));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+    
+    private void add(JarOutputStream out, HashSet<String> written, String name, byte[] bytes) throws IOException {
+        if(!written.add(name)) {
+            return;
+        }
+        out.putNextEntry(new JarEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+    }
+    
+    // Copies an entry from the class path, unless it belongs to some other
+    // compiled story or jar.
+    private void copy(JarOutputStream out, HashSet<String> written, String name, InputStream in) throws IOException {
+        if(name.startsWith(PACKAGE) || name.startsWith("META-INF/")) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copy(in, bytes);
+        this.add(out, written, name, bytes.toByteArray());
+    }
+    
+    private void addDirectory(JarOutputStream out, HashSet<String> written, File directory, String prefix) throws IOException {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File file : files) {
+            if(file.isDirectory()) {
+                this.addDirectory(out, written, file, prefix + file.getName() + "/");
+            } else {
+                InputStream in = new FileInputStream(file);
+                try {
+                    this.copy(out, written, prefix + file.getName(), in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+    
+    private void addJar(JarOutputStream out, HashSet<String> written, File file) throws IOException {
+        JarFile jar = new JarFile(file);
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while(entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if(entry.isDirectory()) {
+                    continue;
+                }
+                InputStream in = jar.getInputStream(entry);
+                try {
+                    this.copy(out, written, entry.getName(), in);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+    
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d routines compiled, %d left to the interpreter, %d failed",
+                this.classes.size(), this.interpreted, this.failures);
+    }
+}
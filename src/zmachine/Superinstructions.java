@@ -0,0 +1,427 @@
+package zmachine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The interpreter's decoded form of a story's code. Each instruction past
+ * dynamic memory is decoded the first time it runs and kept by address,
+ * so executeCycle doesn't decode it again. The commonest pairs of
+ * instructions that fall through one to the other (as found by Profile)
+ * are fused: the first is linked to the second, and when it falls through
+ * the second runs straight away, in the same dispatch. Fused pairs that
+ * overlap (inc_chk then add, and add then jump) run as one.
+ *
+ * The default pairs also get a Pair of their own: a handler that does the
+ * work of both instructions in one call, from the decoded operands,
+ * without callOp or an operand array for either. Where the first leaves
+ * its result on the stack for the second to take straight off again (as
+ * in loadw then je), the value is handed over directly. Pairs added with
+ * fuse() that have no handler run one instruction at a time, as do all
+ * pairs while the machine is being profiled, so that every instruction is
+ * counted.
+ *
+ * Shared by every machine forked from the same story, on whatever threads
+ * they run; an instruction is only published once it has been decoded
+ * and linked. Stories can only write to dynamic memory, so the code
+ * decoded here never changes.
+ *
+ * Turned on by the zmachine.fuse property or enableSuperinstructions().
+ * Fusing can be turned off, to see what difference it makes.
+ */
+public class Superinstructions {
+    // The pairs fused unless told otherwise, by Instruction.key().
+    private static final int[][] FUSED = {
+        { 64 + 5, 32 + 12 }, // inc_chk, jump: the end of a loop
+        { 64 + 4, 32 + 12 }, // dec_chk, jump
+        { 64 + 20, 32 + 12 }, // add, jump
+        { 32 + 5, 32 + 12 }, // inc, jump
+        { 64 + 13, 32 + 12 }, // store, jump
+        { 64 + 17, 64 + 1 }, // get_prop, je
+        { 64 + 15, 64 + 13 }, // loadw, store
+        { 64 + 16, 64 + 13 }, // loadb, store
+        { 64 + 15, 64 + 1 }, // loadw, je
+        { 64 + 10, 64 + 10 }, // test_attr, test_attr
+        { 64 + 1, 64 + 1 }, // je, je: a switch
+    };
+    
+    // Stands in for instructions that couldn't be decoded, so that they
+    // aren't tried again.
+    private static final Instruction UNDECODABLE = new Instruction();
+    
+    private AtomicReferenceArray<Instruction> code;
+    private boolean[] fuses = new boolean[Instruction.KEYS * Instruction.KEYS];
+    private AtomicInteger fused = new AtomicInteger();
+    private AtomicInteger paired = new AtomicInteger();
+    private boolean pairs = true;
+    
+    /**
+     * Runs an instruction and, if it falls through, the one after it, in
+     * one call. run() leaves pc where executeCycle would have, and counts
+     * both instructions.
+     */
+    abstract static class Pair {
+        final Instruction first;
+        final Instruction second;
+        // Set unless the Verifier vouched for the instruction.
+        final boolean checkingFirst;
+        final boolean checkingSecond;
+        // Where each goes if it branches or jumps, or -1.
+        final int firstTarget;
+        final int secondTarget;
+        // Set if the first stores its result on the stack and the second
+        // pops it as its operand handOver.
+        final boolean handOff;
+        
+        Pair(ZMachine z, Instruction first, Instruction second, int handOver) {
+            this.first = first;
+            this.second = second;
+            this.checkingFirst = !z.verified[first.address];
+            this.checkingSecond = !z.verified[second.address];
+            this.firstTarget = target(first);
+            this.secondTarget = target(second);
+            this.handOff = handOver >= 0 && first.store == 0
+                    && second.operandTypes[handOver] == ZMachine.OPERAND_TYPE_VAR && second.operands[handOver] == 0;
+        }
+        
+        private static int target(Instruction i) {
+            if(i.isJump() ? i.isConstant(0) : i.branches && !i.branchReturns()) {
+                return i.target();
+            }
+            return -1;
+        }
+        
+        abstract void run(ZMachine z) throws ZError;
+        
+        static int operand(ZMachine z, Instruction i, int n) throws ZError {
+            if(i.operandTypes[n] == ZMachine.OPERAND_TYPE_VAR) {
+                return z.getVariable(i.operands[n]);
+            }
+            return i.operands[n];
+        }
+        
+        // Whether to hand the first's result straight to the second. Not
+        // if pushing it would overflow the stack, so that the error comes
+        // out as it would have.
+        final boolean handingOff(ZMachine z) {
+            return this.handOff && z.stackPointer < ZMachine.STACK_LIMIT;
+        }
+        
+        // Stores the first's result and moves on to the second.
+        final void store(ZMachine z, int value) throws ZError {
+            z.setVariable(this.first.store, value);
+            this.next(z);
+        }
+        
+        // Moves on from the first to the second.
+        final void next(ZMachine z) {
+            ++z.opcodesExecuted;
+            z.pc = this.second.address;
+            z.checking = this.checkingSecond;
+        }
+        
+        // Finishes the first, which branches on result. Returns true if it
+        // fell through to the second.
+        final boolean branchFirst(ZMachine z, boolean result) throws ZError {
+            if(result != this.first.branchOn) {
+                this.next(z);
+                return true;
+            }
+            branch(z, this.first, this.checkingFirst, this.firstTarget);
+            return false;
+        }
+        
+        // Finishes the second, which branches on result.
+        final void branchSecond(ZMachine z, boolean result) throws ZError {
+            if(result != this.second.branchOn) {
+                ++z.opcodesExecuted;
+                z.pc = this.second.next();
+                return;
+            }
+            branch(z, this.second, this.checkingSecond, this.secondTarget);
+        }
+        
+        // Does what ZMachine.branch does for a branch that is taken,
+        // without reading it from memory.
+        private static void branch(ZMachine z, Instruction i, boolean checking, int target) throws ZError {
+            ++z.opcodesExecuted;
+            if(target < 0) {
+                z.returnFromRoutine(i.branchOffset);
+                z.pc++; // Past the store byte, as executeCycle would.
+                return;
+            }
+            if(checking) {
+                z.checkJump(target);
+            }
+            z.pc = target;
+        }
+        
+        // Runs the second, which is a jump to a constant.
+        final void jumpSecond(ZMachine z) throws ZError {
+            ++z.opcodesExecuted;
+            if(this.checkingSecond) {
+                z.checkJump(this.secondTarget);
+            }
+            z.pc = this.secondTarget;
+        }
+        
+        // Finishes the second, a je on value and its other operands. Every
+        // operand is read, even after a match.
+        final void jeSecond(ZMachine z, int value) throws ZError {
+            boolean result = false;
+            for(int n = 1; n < this.second.argCount; ++n) {
+                result |= operand(z, this.second, n) == value;
+            }
+            this.branchSecond(z, result);
+        }
+        
+        // Finishes the second, a store of value.
+        final void storeSecond(ZMachine z, int variable, int value) throws ZError {
+            z.setVariable(variable, value);
+            ++z.opcodesExecuted;
+            z.pc = this.second.next();
+        }
+        
+        // A word or byte read by loadw or loadb.
+        final int load(ZMachine z, int size) throws ZError {
+            int array = operand(z, this.first, 0);
+            int address = array + operand(z, this.first, 1) * size;
+            if(this.checkingFirst) {
+                z.checkRead(address, size);
+            }
+            if(size == 1) {
+                return z.getByte(address);
+            }
+            return (z.getByte(address) << 8) | z.getByte(address + 1);
+        }
+    }
+    
+    // The handler for a pair, or null if there isn't one.
+    private static Pair pair(ZMachine z, Instruction first, Instruction second) {
+        switch(first.key() * Instruction.KEYS + second.key()) {
+            case (64 + 5) * Instruction.KEYS + 32 + 12: // inc_chk, jump
+            case (64 + 4) * Instruction.KEYS + 32 + 12: // dec_chk, jump
+                if(!second.isConstant(0)) {
+                    return null;
+                }
+                final int step = first.opcode == 5 ? 1 : -1;
+                return new Pair(z, first, second, -1) {
+                    @Override
+                    void run(ZMachine z) throws ZError {
+                        z.checking = this.checkingFirst;
+                        int variable = operand(z, this.first, 0);
+                        int value = operand(z, this.first, 1);
+                        short current = (short)z.getVariable(variable);
+                        current += step;
+                        z.setVariable(variable, current);
+                        boolean result = step > 0 ? z.sign(current) > z.sign(value) : z.sign(current) < z.sign(value);
+                        if(this.branchFirst(z, result)) {
+                            this.jumpSecond(z);
+                        }
+                    }
+                };
+            case (64 + 20) * Instruction.KEYS + 32 + 12: // add, jump
+                if(!second.isConstant(0)) {
+                    return null;
+                }
+                return new Pair(z, first, second, -1) {
+                    @Override
+                    void run(ZMachine z) throws ZError {
+                        z.checking = this.checkingFirst;
+                        int a = z.sign(operand(z, this.first, 0));
+                        this.store(z, a + z.sign(operand(z, this.first, 1)));
+                        this.jumpSecond(z);
+                    }
+                };
+            case (32 + 5) * Instruction.KEYS + 32 + 12: // inc, jump
+                if(!second.isConstant(0)) {
+                    return null;
+                }
+                return new Pair(z, first, second, -1) {
+                    @Override
+                    void run(ZMachine z) throws ZError {
+                        z.checking = this.checkingFirst;
+                        int variable = operand(z, this.first, 0);
+                        z.setVariable(variable, z.getVariable(variable) + 1);
+                        this.next(z);
+                        this.jumpSecond(z);
+                    }
+                };
+            case (64 + 13) * Instruction.KEYS + 32 + 12: // store, jump
+                if(!second.isConstant(0)) {
+                    return null;
+                }
+                return new Pair(z, first, second, -1) {
+                    @Override
+                    void run(ZMachine z) throws ZError {
+                        z.checking = this.checkingFirst;
+                        int variable = operand(z, this.first, 0);
+                        z.setVariable(variable, operand(z, this.first, 1));
+                        this.next(z);
+                        this.jumpSecond(z);
+                    }
+                };
+            case (64 + 17) * Instruction.KEYS + 64 + 1: // get_prop, je
+                return new Pair(z, first, second, 0) {
+                    @Override
+                    void run(ZMachine z) throws ZError {
+                        z.checking = this.checkingFirst;
+                        int obj = operand(z, this.first, 0);
+                        int value = z.getObjectProperty(obj, operand(z, this.first, 1));
+                        if(this.handingOff(z)) {
+                            this.next(z);
+                        } else {
+                            this.store(z, value);
+                            value = operand(z, this.second, 0);
+                        }
+                        this.jeSecond(z, value);
+                    }
+                };
+            case (64 + 15) * Instruction.KEYS + 64 + 1: // loadw, je
+                return new Pair(z, first, second, 0) {
+                    @Override
+                    void run(ZMachine z) throws ZError {
+                        z.checking = this.checkingFirst;
+                        int value = this.load(z, 2);
+                        if(this.handingOff(z)) {
+                            this.next(z);
+                        } else {
+                            this.store(z, value);
+                            value = operand(z, this.second, 0);
+                        }
+                        this.jeSecond(z, value);
+                    }
+                };
+            case (64 + 15) * Instruction.KEYS + 64 + 13: // loadw, store
+            case (64 + 16) * Instruction.KEYS + 64 + 13: // loadb, store
+                // The value can only be handed over if the variable it goes
+                // to doesn't have to be read first.
+                final int size = first.opcode == 15 ? 2 : 1;
+                return new Pair(z, first, second, second.isConstant(0) ? 1 : -1) {
+                    @Override
+                    void run(ZMachine z) throws ZError {
+                        z.checking = this.checkingFirst;
+                        int value = this.load(z, size);
+                        if(this.handingOff(z)) {
+                            this.next(z);
+                            this.storeSecond(z, this.second.operands[0], value);
+                        } else {
+                            this.store(z, value);
+                            int variable = operand(z, this.second, 0);
+                            this.storeSecond(z, variable, operand(z, this.second, 1));
+                        }
+                    }
+                };
+            case (64 + 10) * Instruction.KEYS + 64 + 10: // test_attr, test_attr
+                return new Pair(z, first, second, -1) {
+                    @Override
+                    void run(ZMachine z) throws ZError {
+                        z.checking = this.checkingFirst;
+                        int obj = operand(z, this.first, 0);
+                        if(this.branchFirst(z, z.getObjectAttribute(obj, operand(z, this.first, 1)))) {
+                            obj = operand(z, this.second, 0);
+                            this.branchSecond(z, z.getObjectAttribute(obj, operand(z, this.second, 1)));
+                        }
+                    }
+                };
+            case (64 + 1) * Instruction.KEYS + 64 + 1: // je, je
+                return new Pair(z, first, second, -1) {
+                    @Override
+                    void run(ZMachine z) throws ZError {
+                        z.checking = this.checkingFirst;
+                        int value = operand(z, this.first, 0);
+                        boolean result = false;
+                        for(int n = 1; n < this.first.argCount; ++n) {
+                            result |= operand(z, this.first, n) == value;
+                        }
+                        if(this.branchFirst(z, result)) {
+                            this.jeSecond(z, operand(z, this.second, 0));
+                        }
+                    }
+                };
+        }
+        return null;
+    }
+    
+    public Superinstructions(ZMachine z, boolean fusing) {
+        this.code = new AtomicReferenceArray<Instruction>(z.memorySize);
+        if(fusing) {
+            for(int[] pair : FUSED) {
+                this.fuse(pair[0], pair[1]);
+            }
+        }
+    }
+    
+    /**
+     * Fuses another pair of opcodes, by Instruction.key(): the ones Profile
+     * finds commonest, say. Only affects instructions not yet decoded.
+     */
+    public void fuse(int first, int second) {
+        this.fuses[first * Instruction.KEYS + second] = true;
+    }
+    
+    public boolean fuses(Instruction first, Instruction second) {
+        return this.fuses[first.key() * Instruction.KEYS + second.key()];
+    }
+    
+    /**
+     * Whether fused pairs with a handler of their own use it, rather than
+     * running one instruction at a time. On unless turned off, to see
+     * what difference the handlers make. Only affects instructions not yet
+     * decoded.
+     */
+    public void setPairs(boolean pairs) {
+        this.pairs = pairs;
+    }
+    
+    // The decoded instruction at address, or null if the interpreter has
+    // to decode it itself.
+    Instruction get(ZMachine z, int address) {
+        if(address >= this.code.length()) {
+            return null;
+        }
+        Instruction i = this.code.get(address);
+        if(i == null) {
+            if(address < z.memoryDynamicEnd) {
+                return null;
+            }
+            i = Instruction.decode(z, address);
+            if(i == null) {
+                this.code.set(address, UNDECODABLE);
+                return null;
+            }
+            // The successor is linked to its own in turn, so fused pairs
+            // that overlap make longer runs. It's linked before i is
+            // published, so nothing can see i without it.
+            int following = i.next();
+            if(!i.isTerminator() && !i.isCall() && following < this.code.length()) {
+                Instruction next = Instruction.decode(z, following);
+                if(next != null && this.fuses(i, next)) {
+                    i.successor = this.get(z, following);
+                    this.fused.incrementAndGet();
+                    if(this.pairs && i.successor != null) {
+                        i.pair = pair(z, i, i.successor);
+                        if(i.pair != null) {
+                            this.paired.incrementAndGet();
+                        }
+                    }
+                }
+            }
+            this.code.set(address, i);
+        }
+        return i == UNDECODABLE ? null : i;
+    }
+    
+    @Override
+    public String toString() {
+        int decoded = 0;
+        for(int address = 0; address < this.code.length(); ++address) {
+            Instruction i = this.code.get(address);
+            if(i != null && i != UNDECODABLE) {
+                ++decoded;
+            }
+        }
+        return String.format("%d instructions decoded, %d fused with the next (%d by a handler of their own)",
+                decoded, this.fused.get(), this.paired.get());
+    }
+}
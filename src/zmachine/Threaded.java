@@ -0,0 +1,676 @@
+package zmachine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A threaded-code engine, which runs next to the interpreter. The first
+ * time a routine is called it is translated into an array of handlers,
+ * one per instruction, each bound to its operands and to the indices of
+ * the instructions it can go to next. mainLoop then runs the routine by
+ * following those indices, rather than going back through pc and memory
+ * for every instruction. Control only goes back through pc when it leaves
+ * the routine, which it does on calls, returns and jumps out.
+ *
+ * The commonest instructions have handlers of their own. The rest go
+ * through the interpreter's callOp, so they behave exactly as they would
+ * there. Only routines past dynamic memory are translated.
+ *
+ * Shared by every machine forked from the same story, on whatever threads
+ * they run, in the same way as Superinstructions: a translation is only
+ * published once its handlers are linked. Stories can only write to
+ * dynamic memory, so a translation never goes out of date.
+ *
+ * In shadow mode each specialised handler is checked against the
+ * interpreter: the machine is snapshotted, the interpreter runs the
+ * instruction, the snapshot is restored and the handler runs it. If the
+ * two end up in different states an IllegalStateException is thrown. This
+ * is slow, and only meant for testing.
+ *
+ * Turned on by the zmachine.threaded property (or zmachine.shadow for
+ * shadow mode) or enableThreaded().
+ */
+public class Threaded {
+    // What a handler returns when control leaves the routine; pc says
+    // where it went.
+    static final int EXIT = -1;
+    
+    private final boolean shadow;
+    // The translation each instruction belongs to, and its index there.
+    // The index is written before the translation is published.
+    private final AtomicReferenceArray<Code> owner;
+    private final int[] index;
+    private List<Code> translations = new ArrayList<Code>();
+    private int handlers;
+    private int specialised;
+    private AtomicLong compared = new AtomicLong();
+    
+    // A translated routine.
+    static class Code {
+        final int routine;
+        final Handler[] handlers;
+        
+        Code(int routine, Handler[] handlers) {
+            this.routine = routine;
+            this.handlers = handlers;
+        }
+    }
+    
+    /**
+     * One instruction, with its operands and where it goes next worked out
+     * when the routine is translated. run() does the instruction's work
+     * and returns the index of the next handler to run, or EXIT with pc
+     * set to wherever control went.
+     */
+    abstract static class Handler {
+        final int address;
+        final int next;
+        // Set unless the Verifier vouched for the instruction.
+        final boolean checking;
+        final byte[] types;
+        final int[] operands;
+        final int store;
+        final boolean branchOn;
+        final int branchOffset;
+        // Where a branch or constant jump goes, or -1.
+        final int target;
+        int nextIndex = EXIT;
+        int targetIndex = EXIT;
+        
+        Handler(ZMachine z, Instruction i) {
+            this.address = i.address;
+            this.next = i.next();
+            this.checking = !z.verified[i.address];
+            this.types = i.operandTypes;
+            this.operands = i.operands;
+            this.store = i.store;
+            this.branchOn = i.branchOn;
+            this.branchOffset = i.branchOffset;
+            if(i.isJump() ? i.isConstant(0) : i.branches && !i.branchReturns()) {
+                this.target = i.target();
+            } else {
+                this.target = -1;
+            }
+        }
+        
+        abstract int run(ZMachine z) throws ZError;
+        
+        final int operand(ZMachine z, int n) throws ZError {
+            if(this.types[n] == ZMachine.OPERAND_TYPE_VAR) {
+                return z.getVariable(this.operands[n]);
+            }
+            return this.operands[n];
+        }
+        
+        // Carries on to the next instruction.
+        final int next(ZMachine z) {
+            ++z.opcodesExecuted;
+            if(this.nextIndex == EXIT) {
+                z.pc = this.next;
+            }
+            return this.nextIndex;
+        }
+        
+        // Does what ZMachine.branch does, without reading the branch from
+        // memory.
+        final int branch(ZMachine z, boolean result) throws ZError {
+            if(result != this.branchOn) {
+                return this.next(z);
+            }
+            ++z.opcodesExecuted;
+            if(this.branchOffset == 0 || this.branchOffset == 1) {
+                z.returnFromRoutine(this.branchOffset);
+                z.pc++;
+                return EXIT;
+            }
+            return this.jump(z);
+        }
+        
+        final int jump(ZMachine z) throws ZError {
+            if(this.targetIndex != EXIT) {
+                return this.targetIndex;
+            }
+            if(this.checking) {
+                z.checkJump(this.target);
+            }
+            z.pc = this.target;
+            return EXIT;
+        }
+    }
+    
+    // Anything without a handler of its own, run by the interpreter.
+    static class Generic extends Handler {
+        private final Instruction instruction;
+        
+        Generic(ZMachine z, Instruction i) {
+            super(z, i);
+            this.instruction = i;
+        }
+        
+        @Override
+        int run(ZMachine z) throws ZError {
+            z.execute(this.instruction);
+            if(z.pc == this.next) {
+                return this.nextIndex;
+            }
+            if(z.pc == this.target) {
+                return this.targetIndex;
+            }
+            return EXIT;
+        }
+    }
+    
+    // Instructions that store a result.
+    abstract static class Store extends Handler {
+        Store(ZMachine z, Instruction i) {
+            super(z, i);
+        }
+        
+        abstract int value(ZMachine z) throws ZError;
+        
+        @Override
+        final int run(ZMachine z) throws ZError {
+            z.setVariable(this.store, this.value(z));
+            return this.next(z);
+        }
+    }
+    
+    // Instructions that branch.
+    abstract static class Branch extends Handler {
+        Branch(ZMachine z, Instruction i) {
+            super(z, i);
+        }
+        
+        abstract boolean test(ZMachine z) throws ZError;
+        
+        @Override
+        final int run(ZMachine z) throws ZError {
+            return this.branch(z, this.test(z));
+        }
+    }
+    
+    // Instructions that just change something.
+    abstract static class Effect extends Handler {
+        Effect(ZMachine z, Instruction i) {
+            super(z, i);
+        }
+        
+        abstract void apply(ZMachine z) throws ZError;
+        
+        @Override
+        final int run(ZMachine z) throws ZError {
+            this.apply(z);
+            return this.next(z);
+        }
+    }
+    
+    // Instructions that return from the routine.
+    abstract static class Return extends Handler {
+        Return(ZMachine z, Instruction i) {
+            super(z, i);
+        }
+        
+        abstract int value(ZMachine z) throws ZError;
+        
+        @Override
+        final int run(ZMachine z) throws ZError {
+            z.returnFromRoutine(this.value(z));
+            z.pc++; // Past the store byte, as executeCycle would.
+            ++z.opcodesExecuted;
+            return EXIT;
+        }
+    }
+    
+    public Threaded(ZMachine z, boolean shadow) {
+        this.shadow = shadow;
+        this.owner = new AtomicReferenceArray<Code>(z.memorySize);
+        this.index = new int[z.memorySize];
+    }
+    
+    // Called by op_call on entering a routine, with pc just before its
+    // first instruction.
+    void called(ZMachine z, int routine) {
+        int entry = z.pc + 1;
+        if(routine >= z.memoryDynamicEnd && entry < this.owner.length() && this.owner.get(entry) == null) {
+            this.translate(z, routine);
+        }
+    }
+    
+    private synchronized void translate(ZMachine z, int routine) {
+        Verifier.Routine disassembly = new Verifier(z).routine(routine);
+        if(this.owner.get(disassembly.entry) != null) {
+            return;
+        }
+        List<Instruction> code = new ArrayList<Instruction>();
+        for(Verifier.Block block : disassembly.blocks.values()) {
+            code.addAll(block.code);
+        }
+        Handler[] handlers = new Handler[code.size()];
+        for(int n = 0; n < handlers.length; ++n) {
+            handlers[n] = this.handler(z, code.get(n));
+            if(!(handlers[n] instanceof Generic)) {
+                ++this.specialised;
+            }
+        }
+        // Link them up before they're visible anywhere.
+        for(int n = 0; n < handlers.length; ++n) {
+            Instruction i = code.get(n);
+            handlers[n].nextIndex = indexOf(code, i.next());
+            if(handlers[n].target >= 0) {
+                handlers[n].targetIndex = indexOf(code, handlers[n].target);
+            }
+        }
+        Code translation = new Code(routine, handlers);
+        for(int n = 0; n < handlers.length; ++n) {
+            this.index[code.get(n).address] = n;
+            this.owner.set(code.get(n).address, translation);
+        }
+        this.translations.add(translation);
+        this.handlers += handlers.length;
+    }
+    
+    private static int indexOf(List<Instruction> code, int address) {
+        int low = 0;
+        int high = code.size() - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            int found = code.get(middle).address;
+            if(found == address) {
+                return middle;
+            } else if(found < address) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return EXIT;
+    }
+    
+    /**
+     * Runs translated code from pc until control leaves it or the machine
+     * stops. Returns false, having done nothing, if there's no translation
+     * at pc.
+     */
+    boolean run(ZMachine z) throws ZError {
+        if(z.pc < 0 || z.pc >= this.owner.length()) {
+            return false;
+        }
+        Code code = this.owner.get(z.pc);
+        if(code == null) {
+            return false;
+        }
+        Handler[] handlers = code.handlers;
+        int index = this.index[z.pc];
+        while(z.running && !z.outOfSteps()) {
+            Handler handler = handlers[index];
+            if(this.shadow && !(handler instanceof Generic)) {
+                index = this.shadow(z, handler, handlers);
+            } else {
+                index = handler.run(z);
+            }
+            if(index == EXIT) {
+                return true;
+            }
+        }
+        z.pc = handlers[index].address;
+        return true;
+    }
+    
+    // Runs the handler, and the interpreter on the same instruction, and
+    // checks they agree.
+    private int shadow(ZMachine z, Handler handler, Handler[] handlers) throws ZError {
+        z.pc = handler.address;
+        int count = z.opcodesExecuted;
+        ZSnapshot before = z.snapshot();
+        z.executeCycle(false);
+        int expectedPC = z.pc;
+        long expectedHash = z.stateHash();
+        int expectedCount = z.opcodesExecuted;
+        z.restore(before);
+        z.opcodesExecuted = count;
+        
+        int index = handler.run(z);
+        if(index != EXIT) {
+            z.pc = handlers[index].address;
+        }
+        if(z.pc != expectedPC || z.stateHash() != expectedHash || z.opcodesExecuted != expectedCount) {
+            throw new IllegalStateException(String.format(
+                    "The %s at %d went to %d, but the interpreter went to %d%s.",
+                    Instruction.name(Instruction.decode(z, handler.address).key()), handler.address, z.pc, expectedPC,
+                    z.pc == expectedPC ? " and left a different state" : ""));
+        }
+        this.compared.incrementAndGet();
+        return index;
+    }
+    
+    private Handler handler(ZMachine z, Instruction i) {
+        switch(i.key()) {
+            case 32 + 0: // jz
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        return this.operand(z, 0) == 0;
+                    }
+                };
+            case 32 + 1: // get_sibling
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        int sibling = z.getObjectSibling(this.operand(z, 0));
+                        z.setVariable(this.store, sibling);
+                        return sibling != 0;
+                    }
+                };
+            case 32 + 2: // get_child
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        short child = (short)z.getObjectChild(this.operand(z, 0));
+                        z.setVariable(this.store, child);
+                        return child != 0;
+                    }
+                };
+            case 32 + 3: // get_parent
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        return z.getObjectParent(this.operand(z, 0));
+                    }
+                };
+            case 32 + 5: // inc
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) throws ZError {
+                        int variable = this.operand(z, 0);
+                        z.setVariable(variable, z.getVariable(variable) + 1);
+                    }
+                };
+            case 32 + 6: // dec
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) throws ZError {
+                        int variable = this.operand(z, 0);
+                        z.setVariable(variable, z.getVariable(variable) - 1);
+                    }
+                };
+            case 32 + 11: // ret
+                return new Return(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        return this.operand(z, 0);
+                    }
+                };
+            case 32 + 12: // jump
+                if(i.isConstant(0)) {
+                    return new Handler(z, i) {
+                        @Override
+                        int run(ZMachine z) throws ZError {
+                            ++z.opcodesExecuted;
+                            return this.jump(z);
+                        }
+                    };
+                }
+                break;
+            case 32 + 14: // load
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        return z.getVariable(this.operand(z, 0));
+                    }
+                };
+            case 64 + 1: // je
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        // Every operand is read, even after a match.
+                        int value = this.operand(z, 0);
+                        boolean result = false;
+                        for(int n = 1; n < this.operands.length; ++n) {
+                            result |= this.operand(z, n) == value;
+                        }
+                        return result;
+                    }
+                };
+            case 64 + 2: // jl
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        return z.sign(this.operand(z, 0)) < z.sign(this.operand(z, 1));
+                    }
+                };
+            case 64 + 3: // jg
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        return z.sign(this.operand(z, 0)) > z.sign(this.operand(z, 1));
+                    }
+                };
+            case 64 + 4: // dec_chk
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        int variable = this.operand(z, 0);
+                        int value = this.operand(z, 1);
+                        short current = (short)z.getVariable(variable);
+                        current--;
+                        z.setVariable(variable, current);
+                        return z.sign(current) < z.sign(value);
+                    }
+                };
+            case 64 + 5: // inc_chk
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        int variable = this.operand(z, 0);
+                        int value = this.operand(z, 1);
+                        short current = (short)z.getVariable(variable);
+                        current++;
+                        z.setVariable(variable, current);
+                        return z.sign(current) > z.sign(value);
+                    }
+                };
+            case 64 + 6: // jin
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        int obj = this.operand(z, 0);
+                        return z.getObjectParent(obj) == this.operand(z, 1);
+                    }
+                };
+            case 64 + 7: // test
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        int bitmap = this.operand(z, 0);
+                        int flags = this.operand(z, 1);
+                        return (bitmap & flags) == flags;
+                    }
+                };
+            case 64 + 8: // or
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        return this.operand(z, 0) | this.operand(z, 1);
+                    }
+                };
+            case 64 + 9: // and
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        return this.operand(z, 0) & this.operand(z, 1);
+                    }
+                };
+            case 64 + 10: // test_attr
+                return new Branch(z, i) {
+                    @Override
+                    boolean test(ZMachine z) throws ZError {
+                        int obj = this.operand(z, 0);
+                        return z.getObjectAttribute(obj, this.operand(z, 1));
+                    }
+                };
+            case 64 + 11: // set_attr
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) throws ZError {
+                        int obj = this.operand(z, 0);
+                        z.setObjectAttribute(obj, this.operand(z, 1), true);
+                    }
+                };
+            case 64 + 12: // clear_attr
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) throws ZError {
+                        int obj = this.operand(z, 0);
+                        z.setObjectAttribute(obj, this.operand(z, 1), false);
+                    }
+                };
+            case 64 + 13: // store
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) throws ZError {
+                        int variable = this.operand(z, 0);
+                        z.setVariable(variable, this.operand(z, 1));
+                    }
+                };
+            case 64 + 15: // loadw
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        int array = this.operand(z, 0);
+                        int address = array + this.operand(z, 1) * 2;
+                        if(this.checking) {
+                            z.checkRead(address, 2);
+                        }
+                        return (z.getByte(address) << 8) | z.getByte(address + 1);
+                    }
+                };
+            case 64 + 16: // loadb
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        int array = this.operand(z, 0);
+                        int address = array + this.operand(z, 1);
+                        if(this.checking) {
+                            z.checkRead(address, 1);
+                        }
+                        return z.getByte(address);
+                    }
+                };
+            case 64 + 17: // get_prop
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        int obj = this.operand(z, 0);
+                        return z.getObjectProperty(obj, this.operand(z, 1));
+                    }
+                };
+            case 64 + 18: // get_prop_addr
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        int obj = this.operand(z, 0);
+                        return z.getObjectPropertyAddress(obj, this.operand(z, 1));
+                    }
+                };
+            case 64 + 20: // add
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        return z.sign(this.operand(z, 0)) + z.sign(this.operand(z, 1));
+                    }
+                };
+            case 64 + 21: // sub
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        return z.sign(this.operand(z, 0)) - z.sign(this.operand(z, 1));
+                    }
+                };
+            case 64 + 22: // mul
+                return new Store(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        return z.sign(this.operand(z, 0)) * z.sign(this.operand(z, 1));
+                    }
+                };
+            case 96 + 1: // storew
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) throws ZError {
+                        int array = this.operand(z, 0);
+                        int address = array + 2 * this.operand(z, 1);
+                        int value = this.operand(z, 2);
+                        if(this.checking) {
+                            z.checkWrite(address, 2);
+                        }
+                        z.setNumber(address, value);
+                    }
+                };
+            case 96 + 2: // storeb
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) throws ZError {
+                        int array = this.operand(z, 0);
+                        int address = array + this.operand(z, 1);
+                        int value = this.operand(z, 2);
+                        if(this.checking) {
+                            z.checkWrite(address, 1);
+                        }
+                        z.setByte(address, value);
+                    }
+                };
+            case 96 + 8: // push
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) throws ZError {
+                        z.push(this.operand(z, 0));
+                    }
+                };
+            case 96 + 9: // pull
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) throws ZError {
+                        z.setVariable(this.operand(z, 0), z.pop());
+                    }
+                };
+            case 0: // rtrue
+            case 1: // rfalse
+                final int value = i.opcode == 0 ? 1 : 0;
+                return new Return(z, i) {
+                    @Override
+                    int value(ZMachine z) {
+                        return value;
+                    }
+                };
+            case 4: // nop
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) {
+                    }
+                };
+            case 8: // ret_popped
+                return new Return(z, i) {
+                    @Override
+                    int value(ZMachine z) throws ZError {
+                        return z.pop();
+                    }
+                };
+            case 9: // pop
+                return new Effect(z, i) {
+                    @Override
+                    void apply(ZMachine z) throws ZError {
+                        z.pop();
+                    }
+                };
+        }
+        return new Generic(z, i);
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("%d routines translated, %d handlers (%d specialised), %d checked against the interpreter",
+                this.translations.size(), this.handlers, this.specialised, this.compared.get());
+    }
+}
@@ -0,0 +1,111 @@
+package zmachine;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps the state of the last few turns in memory so that they can be
+ * rolled back. A turn is captured every time the story reads a line.
+ * 
+ * Only the newest turn is held as a full snapshot. Every other turn is kept
+ * as the CMem delta between it and the turn after it, along with its
+ * stacks, so undoing n turns means XORing n small deltas into memory.
+ * Turns are dropped from the old end once there are more than maxTurns of
+ * them or they take up more than maxBytes.
+ */
+public class UndoRing {
+    private ZMachine machine;
+    private int maxTurns;
+    private long maxBytes;
+    private long bytes;
+    private ArrayDeque<Turn> turns = new ArrayDeque<Turn>();
+    private ZSnapshot last;
+    
+    private static class Turn {
+        // XOR of this turn's dynamic memory with the turn after it.
+        // null for the newest turn.
+        byte[] delta;
+        final int[] stack;
+        final int[] callStack;
+        final int pc;
+        final long rngState;
+        final int textAddress;
+        final int parseTable;
+        
+        Turn(ZSnapshot snapshot, int textAddress, int parseTable) {
+            this.stack = snapshot.stack;
+            this.callStack = snapshot.callStack;
+            this.pc = snapshot.pc;
+            this.rngState = snapshot.rngState;
+            this.textAddress = textAddress;
+            this.parseTable = parseTable;
+        }
+        
+        long size() {
+            // Rough, but close enough for a cap.
+            return 64 + (this.delta == null ? 0 : this.delta.length)
+                    + 4 * (this.stack.length + this.callStack.length);
+        }
+    }
+    
+    public UndoRing(ZMachine machine, int maxTurns, long maxBytes) {
+        this.machine = machine;
+        this.maxTurns = maxTurns;
+        this.maxBytes = maxBytes;
+    }
+    
+    // Called by op_read before it asks for input.
+    void capture(int textAddress, int parseTable) {
+        ZSnapshot now = this.machine.snapshot();
+        Turn turn = new Turn(now, textAddress, parseTable);
+        if(this.last != null && !this.turns.isEmpty()) {
+            this.turns.getLast().delta = CMem.diff(now.pages, this.last.pages);
+            this.bytes += this.turns.getLast().delta.length;
+        }
+        this.last = now;
+        this.turns.addLast(turn);
+        this.bytes += turn.size();
+        
+        while(this.turns.size() > 1 && (this.turns.size() > this.maxTurns || this.bytes > this.maxBytes)) {
+            this.bytes -= this.turns.removeFirst().size();
+        }
+    }
+    
+    /**
+     * Rolls the machine back by the given number of turns, leaving it
+     * waiting on the read it was at then.
+     */
+    boolean undo(int n) throws ZError {
+        if(n < 1 || n >= this.turns.size()) {
+            return false;
+        }
+        // Deltas are relative to the newest captured state, so get back
+        // there first in case anything has been written since.
+        this.machine.restore(this.last);
+        this.bytes -= this.turns.removeLast().size();
+        for(int i = 1; i < n; ++i) {
+            Turn turn = this.turns.removeLast();
+            this.bytes -= turn.size();
+            CMem.apply(turn.delta, this.machine);
+        }
+        Turn target = this.turns.getLast();
+        CMem.apply(target.delta, this.machine);
+        this.bytes -= target.delta.length;
+        target.delta = null;
+        
+        this.machine.restoreTurn(target.stack, target.callStack, target.pc, target.rngState);
+        this.machine.readTextAddress = target.textAddress;
+        this.machine.readParseTable = target.parseTable;
+        this.last = this.machine.snapshot();
+        return true;
+    }
+    
+    public int available() {
+        return Math.max(0, this.turns.size() - 1);
+    }
+    
+    public void clear() {
+        this.turns.clear();
+        this.bytes = 0;
+        this.last = null;
+    }
+}
@@ -0,0 +1,277 @@
+package zmachine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Works through a story's code when it is loaded, so that the interpreter
+ * only has to check memory accesses and jumps that could go wrong.
+ *
+ * Starting from the initial pc, and from every constant that unpacks to
+ * something that looks like a routine, each routine is disassembled and
+ * split into basic blocks. Every instruction that touches memory is sorted
+ * by what its address depends on. An instruction is verified if it lies
+ * past dynamic memory (so it can never change), its memory accesses are in
+ * range whatever its variable operands hold, and wherever it jumps or
+ * branches to is inside the story. Verified instructions run without checks.
+ *
+ * Whether an instruction is verified depends only on its own bytes, so it
+ * holds however the story gets there; a wrong guess at a routine can't do
+ * any harm beyond wasted work.
+ */
+public class Verifier {
+    // How an instruction's memory access is addressed.
+    public static final int ACCESS_NONE = 0;
+    public static final int ACCESS_CONSTANT = 1; // Known, and in range
+    public static final int ACCESS_VARIABLE = 2; // Depends on a variable
+    public static final int ACCESS_ILLEGAL = 3; // Known, and out of range
+    public static final int ACCESS_BOUNDED = 4; // Depends on a variable, but in range whatever it holds
+    
+    private ZMachine z;
+    private BitSet verified;
+    private TreeMap<Integer, Routine> routines = new TreeMap<Integer, Routine>();
+    private ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+    private int[] accesses = new int[5];
+    private int instructions;
+    private int rejected;
+    
+    // A run of instructions that is only ever entered at the top.
+    public static class Block {
+        public final int start;
+        public int end; // Just past the last instruction
+        public List<Integer> successors = new ArrayList<Integer>();
+        public List<Instruction> code = new ArrayList<Instruction>();
+        
+        Block(int start) {
+            this.start = start;
+            this.end = start;
+        }
+    }
+    
+    public static class Routine {
+        public final int address;
+        public final int entry; // The first instruction, after the locals
+        public TreeMap<Integer, Block> blocks = new TreeMap<Integer, Block>();
+        // Set if some path ran into something that couldn't be decoded.
+        public boolean incomplete;
+        
+        Routine(int address, int entry) {
+            this.address = address;
+            this.entry = entry;
+        }
+    }
+    
+    public Verifier(ZMachine z) {
+        this.z = z;
+        this.verified = new BitSet(z.memorySize);
+    }
+    
+    public void verify() {
+        this.pending.add(-1); // The main routine, which has no header
+        while(!this.pending.isEmpty()) {
+            int address = this.pending.removeFirst();
+            if(!this.routines.containsKey(address)) {
+                this.disassemble(address);
+            }
+        }
+    }
+    
+    // One flag per byte of memory, set where a verified instruction starts.
+    public boolean[] getVerified() {
+        boolean[] flags = new boolean[this.z.memorySize];
+        for(int i = this.verified.nextSetBit(0); i >= 0; i = this.verified.nextSetBit(i + 1)) {
+            flags[i] = true;
+        }
+        return flags;
+    }
+    
+    public TreeMap<Integer, Routine> getRoutines() {
+        return this.routines;
+    }
+    
+    // Disassembles just the routine at address.
+    public Routine routine(int address) {
+        if(!this.routines.containsKey(address)) {
+            this.disassemble(address);
+        }
+        return this.routines.get(address);
+    }
+    
+    public Routine getMainRoutine() {
+        return this.routines.get(-1);
+    }
+    
+    // Queues a routine if address looks like the start of one.
+    private void addRoutine(int address) {
+        if(address < this.z.memoryHighStart || address >= this.z.memorySize
+                || this.z.getByte(address) > 15 || this.routines.containsKey(address)) {
+            return;
+        }
+        this.pending.add(address);
+    }
+    
+    private void disassemble(int address) {
+        int entry;
+        if(address == -1) {
+            entry = this.z.pc;
+        } else {
+            entry = address + 1 + this.z.getByte(address) * 2;
+        }
+        Routine routine = new Routine(address, entry);
+        this.routines.put(address, routine);
+        
+        // Find every instruction reachable from the entry, and where blocks
+        // have to start.
+        TreeMap<Integer, Instruction> code = new TreeMap<Integer, Instruction>();
+        BitSet leaders = new BitSet();
+        leaders.set(entry);
+        ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+        work.add(entry);
+        while(!work.isEmpty()) {
+            int pc = work.removeFirst();
+            if(code.containsKey(pc)) {
+                continue;
+            }
+            Instruction i = Instruction.decode(this.z, pc);
+            if(i == null) {
+                routine.incomplete = true;
+                ++this.rejected;
+                continue;
+            }
+            code.put(pc, i);
+            this.classify(i);
+            for(int successor : this.successors(i)) {
+                if(successor < 0 || successor >= this.z.memorySize) {
+                    routine.incomplete = true;
+                    continue;
+                }
+                if(successor != i.next() || i.branches) {
+                    leaders.set(successor);
+                }
+                work.add(successor);
+            }
+        }
+        
+        // Cut the instructions up into blocks.
+        Block block = null;
+        for(Instruction i : code.values()) {
+            if(block == null || block.end != i.address || leaders.get(i.address)) {
+                if(block != null && block.end == i.address) {
+                    block.successors.add(i.address);
+                }
+                block = new Block(i.address);
+                routine.blocks.put(i.address, block);
+            }
+            block.code.add(i);
+            block.end = i.next();
+            if(i.branches || i.isTerminator()) {
+                for(int successor : this.successors(i)) {
+                    if(code.containsKey(successor)) {
+                        block.successors.add(successor);
+                    }
+                }
+                block = null;
+            }
+        }
+        this.instructions += code.size();
+    }
+    
+    // Where execution can go next from i, within the routine.
+    private List<Integer> successors(Instruction i) {
+        ArrayList<Integer> successors = new ArrayList<Integer>(2);
+        if(i.isJump()) {
+            if(i.isConstant(0)) {
+                successors.add(i.target());
+            }
+            return successors;
+        }
+        if(i.branches && !i.branchReturns()) {
+            successors.add(i.target());
+        }
+        if(!i.isTerminator()) {
+            successors.add(i.next());
+        }
+        return successors;
+    }
+    
+    // Sorts out i's memory access, looks for routines in its constants, and
+    // marks it verified if it's safe.
+    private void classify(Instruction i) {
+        int access = ACCESS_NONE;
+        if(i.isOp(false, 2, 15) || i.isOp(false, 2, 16)) { // loadw, loadb
+            access = this.access(i, i.opcode == 15 ? 2 : 1, this.z.memorySize);
+        } else if(i.isOp(true, 3, 1) || i.isOp(true, 3, 2)) { // storew, storeb
+            access = this.access(i, i.opcode == 1 ? 2 : 1, this.z.memoryDynamicEnd);
+        }
+        this.accesses[access]++;
+        
+        for(int n = 0; n < i.argCount; ++n) {
+            if(i.operandTypes[n] != ZMachine.OPERAND_TYPE_LARGE) {
+                continue;
+            }
+            // Constants in calls are routines; elsewhere they may be, unless
+            // they're strings or jumps.
+            if((n == 0 && i.isCall()) || !(i.isJump() || i.isOp(false, 1, 13))) {
+                this.addRoutine(this.z.unpackAddress(i.operands[n]));
+            }
+        }
+        
+        if(i.address < this.z.memoryDynamicEnd || access == ACCESS_VARIABLE || access == ACCESS_ILLEGAL) {
+            return;
+        }
+        if(i.isJump() && !(i.isConstant(0) && this.inStory(i.target()))) {
+            return;
+        }
+        if(i.branches && !i.branchReturns() && !this.inStory(i.target())) {
+            return;
+        }
+        this.verified.set(i.address);
+    }
+    
+    // Array instructions address memory at array + index * size. A
+    // variable operand can hold anything up to 0xFFFF, so an access that
+    // uses one is bounded only if the highest address it could reach is in
+    // range. That's mostly reads through a variable with a small constant
+    // index, in stories over 64K. Nothing written through a variable is
+    // bounded, as dynamic memory is always smaller than that.
+    private int access(Instruction i, int size, int limit) {
+        boolean constant = i.isConstant(0) && i.isConstant(1);
+        int highest = this.highest(i, 0) + this.highest(i, 1) * size;
+        if(highest + size <= limit) {
+            return constant ? ACCESS_CONSTANT : ACCESS_BOUNDED;
+        }
+        return constant ? ACCESS_ILLEGAL : ACCESS_VARIABLE;
+    }
+    
+    // The most an operand can be.
+    private int highest(Instruction i, int operand) {
+        return i.isConstant(operand) ? i.operands[operand] : 0xFFFF;
+    }
+    
+    private boolean inStory(int address) {
+        return address >= 0 && address < this.z.memorySize;
+    }
+    
+    @Override
+    public String toString() {
+        int blocks = 0;
+        int edges = 0;
+        int incomplete = 0;
+        for(Routine routine : this.routines.values()) {
+            blocks += routine.blocks.size();
+            for(Block block : routine.blocks.values()) {
+                edges += block.successors.size();
+            }
+            if(routine.incomplete) {
+                ++incomplete;
+            }
+        }
+        return String.format("%d routines (%d incomplete), %d blocks, %d edges, %d instructions, %d verified, %d undecodable. "
+                + "Memory accesses: %d constant, %d bounded, %d variable, %d illegal.",
+                this.routines.size(), incomplete, blocks, edges, this.instructions, this.verified.cardinality(),
+                this.rejected, this.accesses[ACCESS_CONSTANT], this.accesses[ACCESS_BOUNDED], this.accesses[ACCESS_VARIABLE], this.accesses[ACCESS_ILLEGAL]);
+    }
+}
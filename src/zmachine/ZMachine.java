@@ -4,11 +4,13 @@ import java.io.FileInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.io.File;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Random;
 import org.apache.commons.collections.primitives.ArrayShortList;
 
 /**
@@ -26,14 +28,24 @@ public class ZMachine {
     public static final byte OPERAND_TYPE_OMITTED = 3;
     
     public static final int STORY_MAX_SIZE = 131072; // 128 kilobytes
-    public static final int STACK_SIZE = 1000;
-    public static final int CALL_STACK_SIZE = 1000;
+    // The stacks start one segment long and grow a segment at a time, up to
+    // their limits. Sizes are in words and frames respectively.
+    public static final int STACK_SEGMENT = 256;
+    public static final int STACK_LIMIT = 32768;
+    public static final int FRAME_SEGMENT = 32;
+    public static final int FRAME_LIMIT = 1024;
+    
+    // Memory is held in pages so that snapshots and forks can share what
+    // has not been written.
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    public static final int PAGE_MASK = PAGE_SIZE - 1;
     
     protected File filename;
     protected int version;
     
-    // Memory
-    protected short[] memory;
+    // Memory, as a table of pages. Read it with getByte.
+    protected short[][] memory;
     protected int memorySize; // Contains actual memory image size
     protected int memoryDynamicEnd;
     protected int memoryStaticStart;
@@ -41,6 +53,17 @@ public class ZMachine {
     protected int memoryHighStart;
     protected int memoryHighEnd;
     
+    // Page tracking. Static and high memory is never written, so those pages
+    // are shared by the machine and every fork of it. A clean dynamic page is
+    // the very page in basePages, which belongs to a snapshot and must not
+    // change; the first write to it copies it and marks it dirty, and only
+    // dirty pages belong to this machine alone. pristinePages are the pages
+    // as loaded from the story file; a page that is still the same object in
+    // a snapshot has never been written.
+    protected boolean[] dirtyPages;
+    protected short[][] basePages;
+    protected short[][] pristinePages;
+    
     // Tables
     protected int dictionaryStart;
     protected int objectTableStart;
@@ -55,16 +78,85 @@ public class ZMachine {
     // Execution
     protected int pc = 0;
     protected int[] stack; // Because Java doesn't like primitives in Stacks.
-    protected short stackPointer;
-    protected int[] callStack;
-    protected short callStackPointer;
-    protected boolean running;
+    protected int stackPointer;
+    // The call stack, one array per field of a frame.
+    protected int[] frameArgs; // (argument mask << 8) | local count
+    protected int[] frameStore; // Variable to store the result in
+    protected int[] framePC; // Where to return to
+    protected int[] frameBase; // Stack pointer on entry; the locals start here
+    protected int frameCount;
+    // frameBase of the current frame, or 0 outside any routine.
+    protected int framePointer;
+    // Set for each address where the Verifier found an instruction that
+    // can't go outside memory. checking is set while any other instruction
+    // runs, and makes memory accesses and jumps check themselves.
+    protected boolean[] verified;
+    protected boolean checking = true;
+    // Compiles hot routines; off unless enableJit is called or the
+    // zmachine.jit property is set. Shared with forks.
+    public static final boolean JIT = Boolean.getBoolean("zmachine.jit");
+    protected Jit jit;
+    // Instructions decoded once and kept, with common pairs fused; off
+    // unless enableSuperinstructions is called or the zmachine.fuse
+    // property is set. Shared with forks.
+    public static final boolean FUSE = Boolean.getBoolean("zmachine.fuse");
+    protected Superinstructions superinstructions;
+    // Runs routines as threaded code; off unless enableThreaded is called
+    // or the zmachine.threaded property is set (zmachine.shadow checks it
+    // against the interpreter as well). Shared with forks.
+    public static final boolean SHADOW = Boolean.getBoolean("zmachine.shadow");
+    public static final boolean THREADED = SHADOW || Boolean.getBoolean("zmachine.threaded");
+    protected Threaded threaded;
+    // Counts opcodes and sequences of them. Not shared with forks.
+    public static final boolean PROFILE = Boolean.getBoolean("zmachine.profile");
+    protected Profile profile;
+    // Goes up whenever the machine is restored or reset, so that compiled
+    // code can tell it has been pulled out from under it.
+    protected int generation;
+    // Volatile, as stop() may be called from another thread.
+    protected volatile boolean running;
+    // See stopAtNextRead().
+    protected boolean stopAtRead;
+    protected boolean pausedAtRead;
+    // See pause().
+    protected boolean paused;
+    
+    // Kept between saves so that it can reuse its work.
+    protected QuetzalSaver saver;
+    // If set, saves go here under the session's key instead of to a file.
+    protected SaveStore saveStore;
+    protected String saveSession;
     
     // Randomness
-    protected Random rng;
+    protected ZRandom rng;
+    
+    // Zobrist hash of dynamic memory, kept up to date by every write. See
+    // stateHash().
+    protected long memoryHash;
+    protected long pristineHash;
+    // Makes stateHash() check itself against a full recompute.
+    public static final boolean CHECK_STATE_HASH = Boolean.getBoolean("zmachine.checkStateHash");
+    
+    // If set, input and seeds are recorded here, or replayed from it.
+    protected Journal journal;
+    
+    // Undo. Off unless enableUndo is called; the front ends call it if the
+    // zmachine.undo property is set, since it takes UNDO_COMMAND away from
+    // the story. While a read is in progress these hold its operands, so
+    // that an undo can switch to another read.
+    public static final boolean UNDO = Boolean.getBoolean("zmachine.undo");
+    public static final String UNDO_COMMAND = "undo";
+    public static final int UNDO_TURNS = 100;
+    public static final long UNDO_BYTES = 1 << 20;
+    protected UndoRing undoRing;
+    protected int readTextAddress;
+    protected int readParseTable;
     
     // Stats
     protected int opcodesExecuted;
+    // If set, the machine stops once opcodesExecuted reaches stepLimit.
+    private boolean stepLimited;
+    private int stepLimit;
     
     // I/O
     protected ZIO io;
@@ -72,7 +164,54 @@ public class ZMachine {
     public ZMachine(ZIO io, File filename) {
         this.io = io;
         this.filename = filename;
-        this.memory = new short[STORY_MAX_SIZE];
+        // Memory is allocated by init(), when the story is loaded.
+    }
+    
+    // Used by fork(). Takes over everything from the parent, which must have
+    // just taken a snapshot so that its memory is its basePages. Only the
+    // page table is copied; pages are copied as they are written.
+    protected ZMachine(ZMachine parent, ZIO io) {
+        this.io = io;
+        this.filename = parent.filename;
+        this.version = parent.version;
+        this.memory = parent.memory.clone();
+        this.memorySize = parent.memorySize;
+        this.memoryDynamicEnd = parent.memoryDynamicEnd;
+        this.memoryStaticStart = parent.memoryStaticStart;
+        this.memoryStaticEnd = parent.memoryStaticEnd;
+        this.memoryHighStart = parent.memoryHighStart;
+        this.memoryHighEnd = parent.memoryHighEnd;
+        this.dirtyPages = new boolean[parent.dirtyPages.length];
+        this.basePages = parent.basePages;
+        this.pristinePages = parent.pristinePages;
+        this.memoryHash = parent.memoryHash;
+        this.pristineHash = parent.pristineHash;
+        this.dictionaryStart = parent.dictionaryStart;
+        this.objectTableStart = parent.objectTableStart;
+        this.globalVariableStart = parent.globalVariableStart;
+        this.abbreviationStart = parent.abbreviationStart;
+        this.wordSeparators = parent.wordSeparators;
+        this.dictionaryEntryLength = parent.dictionaryEntryLength;
+        this.dictionaryLength = parent.dictionaryLength;
+        this.pc = parent.pc;
+        this.stack = parent.stack.clone();
+        this.stackPointer = parent.stackPointer;
+        this.frameArgs = parent.frameArgs.clone();
+        this.frameStore = parent.frameStore.clone();
+        this.framePC = parent.framePC.clone();
+        this.frameBase = parent.frameBase.clone();
+        this.frameCount = parent.frameCount;
+        this.framePointer = parent.framePointer;
+        this.verified = parent.verified;
+        this.jit = parent.jit;
+        this.superinstructions = parent.superinstructions;
+        this.threaded = parent.threaded;
+        this.rng = new ZRandom();
+        this.rng.setState(parent.rng.getState());
+        this.opcodesExecuted = parent.opcodesExecuted;
+        this.readTextAddress = parent.readTextAddress;
+        this.readParseTable = parent.readParseTable;
+        this.pausedAtRead = parent.pausedAtRead;
     }
     
     public boolean init() throws ZError {
@@ -80,30 +219,90 @@ public class ZMachine {
         if(story == null) {
             return false;
         }
-        this.memory = story;
+        this.memory = new short[STORY_MAX_SIZE >> PAGE_SHIFT][];
+        for(int i = 0; i < this.memory.length; ++i) {
+            this.memory[i] = Arrays.copyOfRange(story, i << PAGE_SHIFT, (i + 1) << PAGE_SHIFT);
+        }
         this.initVM();
         return true;
     }
     
     public void run() throws ZError {
         this.running = true;
+        this.paused = false;
+        if(this.pausedAtRead) {
+            this.pausedAtRead = false;
+            this.startRead();
+            this.finishRead();
+            this.pc++; // As executeCycle would have.
+        }
         this.mainLoop();
     }
     
+    /**
+     * Makes run() return when the story next asks for input, before it
+     * asks. The next call to run() carries on with the read.
+     */
+    public void stopAtNextRead() {
+        this.stopAtRead = true;
+    }
+    
+    public boolean isPausedAtRead() {
+        return this.pausedAtRead;
+    }
+    
+    /**
+     * Makes run() return once the current instruction is done, to carry
+     * on from the next one when run() is called again. For a ZIO that
+     * needs its output dealt with before the story prints any more.
+     */
+    public void pause() {
+        this.paused = true;
+        this.running = false;
+    }
+    
+    public boolean isPaused() {
+        return this.paused;
+    }
+    
     public void stop() {
         this.running = false;
     }
     
+    /**
+     * Stops the machine once it has run this many more instructions, so a
+     * story stuck in a loop can't hold up the caller for ever. Interpreted,
+     * threaded and compiled code all count towards it, though compiled code
+     * only checks at its safepoints. Zero or less lifts the limit.
+     */
+    public void limitSteps(int steps) {
+        this.stepLimited = steps > 0;
+        this.stepLimit = this.opcodesExecuted + steps;
+    }
+    
+    // Stops the machine and returns true if it has used up its steps.
+    boolean outOfSteps() {
+        if(this.stepLimited && this.opcodesExecuted - this.stepLimit >= 0) {
+            this.running = false;
+            return true;
+        }
+        return false;
+    }
+    
     protected void mainLoop() throws ZError {
         while(this.running) {
-            this.executeCycle();
+            if(this.threaded == null || !this.threaded.run(this)) {
+                this.executeCycle();
+            }
+        }
+        if(!this.pausedAtRead && !this.paused) {
+            this.io.outputComment("VM terminated. Executed " + this.opcodesExecuted + " opcodes.");
         }
-        this.io.outputComment("VM terminated. Executed " + this.opcodesExecuted + " opcodes.");
     }
     
     protected short[] loadStory() {
         try {
-            FileInputStream s = new FileInputStream(this.filename);
+            InputStream s = this.openStory();
             DataInputStream d = new DataInputStream(s);
             short[] story = new short[STORY_MAX_SIZE];
             int i = 0;
@@ -123,8 +322,12 @@ public class ZMachine {
         }
     }
     
+    protected InputStream openStory() throws IOException {
+        return new FileInputStream(this.filename);
+    }
+    
     private void initVM() throws ZError {
-        this.version = this.memory[0x00];
+        this.version = this.getByte(0x00);
         // We only support file versions 1, 2 and 3.
         if(this.version > 3) {
             throw new StoryError("Invalid version number.");
@@ -144,19 +347,43 @@ public class ZMachine {
         this.objectTableStart = this.unsignedNumber(0x0A);
         this.globalVariableStart = this.unsignedNumber(0x0C);
         this.abbreviationStart = this.unsignedNumber(0x18);
+        this.initPages();
         
         // Prepare the operational structures
         this.pc = this.unsignedNumber(0x06); // Initial PC
-        this.stack = new int[STACK_SIZE];
+        this.stack = new int[STACK_SEGMENT];
         this.stackPointer = 0;
-        this.callStack = new int[CALL_STACK_SIZE];
-        this.callStackPointer = 0;
+        this.frameArgs = new int[FRAME_SEGMENT];
+        this.frameStore = new int[FRAME_SEGMENT];
+        this.framePC = new int[FRAME_SEGMENT];
+        this.frameBase = new int[FRAME_SEGMENT];
+        this.frameCount = 0;
+        this.framePointer = 0;
+        
+        // Find the code that can run without checks.
+        Verifier verifier = new Verifier(this);
+        verifier.verify();
+        this.verified = verifier.getVerified();
+        Logger.getLogger(ZMachine.class.getName()).log(Level.FINE, "Verified {0}: {1}",
+                new Object[] { this.filename, verifier });
+        if(JIT) {
+            this.jit = new Jit(this);
+        }
+        if(FUSE) {
+            this.superinstructions = new Superinstructions(this, true);
+        }
+        if(THREADED) {
+            this.threaded = new Threaded(this, SHADOW);
+        }
+        if(PROFILE) {
+            this.profile = new Profile(this);
+        }
         
         // Reset stats
         this.opcodesExecuted = 0;
         
         // Initialise the RNG.
-        this.rng = new Random();
+        this.rng = new ZRandom(this.newSeed());
         
         // Prepare the dictionary
         this.initDictionary();
@@ -166,19 +393,314 @@ public class ZMachine {
     }
     
     protected void initDictionary() throws ZError {
-        short separator_count = this.memory[this.dictionaryStart];
+        short separator_count = this.getByte(this.dictionaryStart);
         this.wordSeparators = new short[separator_count];
-        System.arraycopy(this.memory, this.dictionaryStart + 1, this.wordSeparators, 0, separator_count);
+        for(int i = 0; i < separator_count; ++i) {
+            this.wordSeparators[i] = this.getByte(this.dictionaryStart + 1 + i);
+        }
         Arrays.sort(this.wordSeparators); // Must be sorted because we use Arrays.binarySearch later on.
-        this.dictionaryEntryLength = this.memory[this.dictionaryStart + separator_count + 1];
+        this.dictionaryEntryLength = this.getByte(this.dictionaryStart + separator_count + 1);
         this.dictionaryLength = this.unsignedNumber(this.dictionaryStart + separator_count + 2);
     }
     
+    protected void initPages() {
+        this.basePages = Arrays.copyOf(this.memory, (this.memoryDynamicEnd + PAGE_SIZE - 1) >> PAGE_SHIFT);
+        this.dirtyPages = new boolean[this.basePages.length];
+        this.pristinePages = this.basePages;
+        this.memoryHash = this.computeMemoryHash();
+        this.pristineHash = this.memoryHash;
+    }
+    
+    // The page holding an address, copied first if it is still shared.
+    private short[] writablePage(int address) {
+        int page = address >>> PAGE_SHIFT;
+        if(!this.dirtyPages[page]) {
+            this.memory[page] = this.memory[page].clone();
+            this.dirtyPages[page] = true;
+        }
+        return this.memory[page];
+    }
+    
+    /**
+     * Captures the machine's current state. Must be called between
+     * instructions, either from the thread running the machine or while it
+     * is stopped.
+     */
+    public ZSnapshot snapshot() {
+        return new ZSnapshot(this.snapshotPages(),
+                Arrays.copyOf(this.stack, this.stackPointer),
+                this.packFrames(),
+                this.pc, this.rng.getState(), this.memoryHash);
+    }
+    
+    // The memory part of snapshot(). Dirty pages are handed over to the
+    // snapshot rather than copied, and become shared again.
+    short[][] snapshotPages() {
+        short[][] pages = Arrays.copyOf(this.memory, this.basePages.length);
+        Arrays.fill(this.dirtyPages, false);
+        this.basePages = pages;
+        return pages;
+    }
+    
+    // Makes the machine's dynamic memory the given pages, without copying.
+    private void sharePages(short[][] pages) {
+        System.arraycopy(pages, 0, this.memory, 0, pages.length);
+        Arrays.fill(this.dirtyPages, false);
+        this.basePages = pages;
+    }
+    
+    /**
+     * Puts the machine back into the state captured by the snapshot, which
+     * may have come from this machine or any machine forked from the same
+     * story. The snapshot's pages are shared rather than copied.
+     */
+    public void restore(ZSnapshot snapshot) throws ZError {
+        if(snapshot.pages.length != this.basePages.length) {
+            throw new ZError("Snapshot does not belong to this story.");
+        }
+        this.sharePages(snapshot.pages);
+        this.memoryHash = snapshot.memoryHash;
+        this.checking = true; // We're somewhere else now.
+        ++this.generation;
+        this.restoreTurn(snapshot.stack, snapshot.callStack, snapshot.pc, snapshot.rngState);
+    }
+    
+    /**
+     * Takes the machine back to the start of the story without reading it
+     * again or allocating anything: dynamic memory comes from the pristine
+     * pages, the stacks are emptied and the RNG gets a new seed. Any undo
+     * history is dropped.
+     */
+    public void reset() throws ZError {
+        this.resetToPristine();
+        this.rng.setSeed(this.newSeed());
+        this.opcodesExecuted = 0;
+        this.readTextAddress = 0;
+        this.readParseTable = 0;
+        this.stopAtRead = false;
+        this.pausedAtRead = false;
+        this.paused = false;
+        if(this.undoRing != null) {
+            this.undoRing.clear();
+        }
+    }
+    
+    /**
+     * Puts dynamic memory back the way the story file has it and empties
+     * the stacks, without reading the story again. Nothing is copied; the
+     * pristine pages are shared until they are written.
+     */
+    public void resetToPristine() throws ZError {
+        this.sharePages(this.pristinePages);
+        this.memoryHash = this.pristineHash;
+        ++this.generation;
+        this.stackPointer = 0;
+        this.frameCount = 0;
+        this.framePointer = 0;
+        this.pc = this.unsignedNumber(0x06);
+    }
+    
+    /**
+     * A fingerprint of the machine's state: dynamic memory, both stacks and
+     * pc. Memory is hashed as it is written, so this costs no more than
+     * hashing the stacks, which are usually short. The RNG isn't included.
+     */
+    public long stateHash() {
+        if(CHECK_STATE_HASH && this.memoryHash != this.computeMemoryHash()) {
+            throw new IllegalStateException("State hash is out of step with memory.");
+        }
+        long hash = this.pc;
+        for(int i = 0; i < this.stackPointer; ++i) {
+            hash = hash * 31 + this.stack[i];
+        }
+        for(int i = 0; i < this.frameCount; ++i) {
+            hash = hash * 31 + this.frameArgs[i];
+            hash = hash * 31 + this.frameStore[i];
+            hash = hash * 31 + this.framePC[i];
+            hash = hash * 31 + this.frameBase[i];
+        }
+        return this.memoryHash ^ mix(hash);
+    }
+    
+    protected long computeMemoryHash() {
+        long hash = 0;
+        for(int i = 0; i < this.memoryDynamicEnd; ++i) {
+            hash ^= zobrist(i, this.getByte(i));
+        }
+        return hash;
+    }
+    
+    // The Zobrist key for a byte value at an address. Computed rather than
+    // looked up, since a table would need 256 entries per byte of memory.
+    private static long zobrist(int address, int value) {
+        return mix(((long)address << 8) | value);
+    }
+    
+    // The splitmix64 finaliser.
+    private static long mix(long z) {
+        z = (z + 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    // Every seed the machine picks for itself comes from here, so that a
+    // journal can record it and a replay can use it again.
+    protected long newSeed() {
+        if(this.journal != null) {
+            return this.journal.seed();
+        }
+        return System.nanoTime();
+    }
+    
+    // callStack is packed as by packFrames().
+    void restoreTurn(int[] stack, int[] callStack, int pc, long rngState) throws ZError {
+        this.stackPointer = 0;
+        this.frameCount = 0;
+        this.framePointer = 0;
+        this.reserveStack(stack.length);
+        System.arraycopy(stack, 0, this.stack, 0, stack.length);
+        this.stackPointer = stack.length;
+        for(int i = 0; i < callStack.length; i += 4) {
+            this.pushFrame(callStack[i], callStack[i + 1], callStack[i + 2], callStack[i + 3]);
+        }
+        this.pc = pc;
+        this.rng.setState(rngState);
+    }
+    
+    /**
+     * Sends this machine's saves to a store rather than asking for a file.
+     * Each session gets one save slot; saving again replaces it.
+     */
+    public void setSaveStore(SaveStore store, String session) {
+        this.saveStore = store;
+        this.saveSession = session;
+    }
+    
+    /**
+     * Starts keeping an in-memory undo history of up to the given number of
+     * turns, using no more than roughly maxBytes. Players can then type
+     * UNDO_COMMAND at any prompt.
+     */
+    public void enableUndo(int maxTurns, long maxBytes) {
+        this.undoRing = new UndoRing(this, maxTurns, maxBytes);
+    }
+    
+    public void disableUndo() {
+        this.undoRing = null;
+    }
+    
+    /**
+     * Starts compiling routines that are called often. The machine must
+     * have been initialised. Machines forked from this one afterwards share
+     * its compiled code.
+     */
+    public void enableJit() {
+        if(this.jit == null) {
+            this.jit = new Jit(this);
+        }
+    }
+    
+    public Jit getJit() {
+        return this.jit;
+    }
+    
+    /**
+     * Starts keeping decoded instructions, and if fuse is set running
+     * common pairs of them in one go. The machine must have been
+     * initialised.
+     */
+    public void enableSuperinstructions(boolean fuse) {
+        if(this.superinstructions == null) {
+            this.superinstructions = new Superinstructions(this, fuse);
+        }
+    }
+    
+    public Superinstructions getSuperinstructions() {
+        return this.superinstructions;
+    }
+    
+    /**
+     * Starts running routines as threaded code, and if shadow is set
+     * checking each instruction against the interpreter. The machine must
+     * have been initialised.
+     */
+    public void enableThreaded(boolean shadow) {
+        if(this.threaded == null) {
+            this.threaded = new Threaded(this, shadow);
+        }
+    }
+    
+    public Threaded getThreaded() {
+        return this.threaded;
+    }
+    
+    // Starts counting opcodes. The machine must have been initialised.
+    public void enableProfile() {
+        if(this.profile == null) {
+            this.profile = new Profile(this);
+        }
+    }
+    
+    public Profile getProfile() {
+        return this.profile;
+    }
+    
+    // Makes the story's random numbers repeatable, for comparing runs.
+    public void setRandomSeed(long seed) {
+        this.rng.setSeed(seed);
+    }
+    
+    /**
+     * Rolls back the given number of turns. Must be called from within
+     * ZIO.readLine, or while the machine is blocked in it; the line that
+     * readLine then returns is read at the restored prompt.
+     * Returns false if undo is off or there isn't that much history.
+     */
+    public boolean undo(int turns) throws ZError {
+        if(this.undoRing == null) {
+            return false;
+        }
+        return this.undoRing.undo(turns);
+    }
+    
+    /**
+     * Creates an independent copy of this machine, sharing the given I/O.
+     * The two machines share snapshot pages until either writes to them.
+     */
+    public ZMachine fork(ZIO io) {
+        this.snapshot();
+        return new ZMachine(this, io);
+    }
+    
+    public ZMachine fork() {
+        return this.fork(this.io);
+    }
+    
     protected int unsignedNumber(int address) throws ZError {
-        if(address >= this.memoryHighEnd) {
+        if(address < 0 || address >= this.memoryHighEnd) {
             throw new StoryError("Illegal attempt to retrieve data from past the end of high memory");
         }
-        return (this.memory[address] << 8) | (this.memory[address + 1]);
+        return (this.getByte(address) << 8) | (this.getByte(address + 1));
+    }
+    
+    // The checked accessors, for instructions that haven't been verified.
+    protected void checkRead(int address, int length) throws ZError {
+        if(address < 0 || address + length > this.memorySize) {
+            throw new StoryError(String.format("Illegal attempt to read %d bytes at %d", length, address));
+        }
+    }
+    
+    // Only dynamic memory may be written.
+    protected void checkWrite(int address, int length) throws ZError {
+        if(address < 0 || address + length > this.memoryDynamicEnd) {
+            throw new StoryError(String.format("Illegal attempt to write %d bytes at %d", length, address));
+        }
+    }
+    
+    protected void checkJump(int address) throws ZError {
+        if(address < 0 || address >= this.memorySize) {
+            throw new StoryError(String.format("Illegal attempt to jump to %d", address));
+        }
     }
     
     protected int signedNumber(int address) throws ZError {
@@ -196,11 +718,24 @@ public class ZMachine {
         return unsigned;
     }
     
+    // Reads a byte of memory. Nothing is checked here; see checkRead.
+    protected final short getByte(int address) {
+        return this.memory[address >>> PAGE_SHIFT][address & PAGE_MASK];
+    }
+    
     protected void setNumber(int address, int number) {
-        int high = (number >>> 8) & 0xFF;
-        int low = number & 0xFF;
-        this.memory[address] = (short)high;
-        this.memory[address+1] = (short)low;
+        this.setByte(address, number >>> 8);
+        this.setByte(address + 1, number);
+    }
+    
+    // Every write to memory goes through here, so that page tracking and the
+    // memory hash stay correct. Writes must already be known to fall inside
+    // dynamic memory.
+    protected void setByte(int address, int value) {
+        value &= 0xFF;
+        short[] page = this.writablePage(address);
+        this.memoryHash ^= zobrist(address, page[address & PAGE_MASK]) ^ zobrist(address, value);
+        page[address & PAGE_MASK] = (short)value;
     }
     
     protected int unpackAddress(int address) {
@@ -208,7 +743,42 @@ public class ZMachine {
     }
     
     protected void executeCycle() throws ZError {
-        int opcode = this.memory[this.pc];
+        this.executeCycle(true);
+    }
+    
+    // Runs one instruction, or if fuse is set, the run of instructions
+    // fused to it for as long as each falls through to the next. A pair
+    // with a handler of its own ends the run, unless the machine is being
+    // profiled.
+    protected void executeCycle(boolean fuse) throws ZError {
+        if(this.outOfSteps()) {
+            return;
+        }
+        if(this.profile != null) {
+            this.profile.executed(this, this.pc);
+        }
+        if(this.superinstructions != null) {
+            Instruction i = this.superinstructions.get(this, this.pc);
+            if(i != null) {
+                while(true) {
+                    if(fuse && i.pair != null && this.profile == null) {
+                        i.pair.run(this);
+                        return;
+                    }
+                    this.execute(i);
+                    if(!fuse || i.successor == null || this.pc != i.successor.address || !this.running) {
+                        return;
+                    }
+                    i = i.successor;
+                    if(this.profile != null) {
+                        this.profile.executed(this, this.pc);
+                        this.profile.fused();
+                    }
+                }
+            }
+        }
+        this.checking = !this.verified[this.pc];
+        int opcode = this.getByte(this.pc);
         int toIncrement = 1;
         int format;
         int operandCount = -1;
@@ -270,7 +840,7 @@ public class ZMachine {
         if(format == OPCODE_FORMAT_VARIABLE) {
             toIncrement++;
             this.pc++;
-            short bits = this.memory[this.pc];
+            short bits = this.getByte(this.pc);
             operandTypes = new byte[4];
             operandCount = 0;
             for(int i = 0; i < 4; ++i) {
@@ -292,9 +862,9 @@ public class ZMachine {
                 operands[i] = this.unsignedNumber(this.pc + 1);
                 this.pc += 2;
             } else if(operandTypes[i] == OPERAND_TYPE_SMALL) {
-                operands[i] = this.memory[++this.pc];
+                operands[i] = this.getByte(++this.pc);
             } else if(operandTypes[i] == OPERAND_TYPE_VAR) {
-                operands[i] = this.getVariable(this.memory[++this.pc]);
+                operands[i] = this.getVariable(this.getByte(++this.pc));
             }
         }
         
@@ -305,6 +875,91 @@ public class ZMachine {
         this.pc++;
     }
     
+    // Does what the rest of executeCycle does, for an instruction that has
+    // already been decoded.
+    void execute(Instruction i) throws ZError {
+        this.checking = !this.verified[i.address];
+        int[] operands = new int[i.argCount];
+        for(int n = 0; n < i.argCount; ++n) {
+            if(i.operandTypes[n] == OPERAND_TYPE_VAR) {
+                operands[n] = this.getVariable(i.operands[n]);
+            } else {
+                operands[n] = i.operands[n];
+            }
+        }
+        this.pc = i.operandEnd;
+        this.callOp(i.opcode, i.argCount, i.variable, operands);
+        this.pc++;
+    }
+    
+    // Snapshots and saves keep the call stack as four words per frame:
+    // arguments and locals, store variable, return pc and stack base.
+    protected int[] packFrames() {
+        int[] frames = new int[this.frameCount * 4];
+        for(int i = 0; i < this.frameCount; ++i) {
+            frames[i * 4] = this.frameArgs[i];
+            frames[i * 4 + 1] = this.frameStore[i];
+            frames[i * 4 + 2] = this.framePC[i];
+            frames[i * 4 + 3] = this.frameBase[i];
+        }
+        return frames;
+    }
+    
+    protected void pushFrame(int args, int store, int pc, int base) throws ZError {
+        if(this.frameCount == this.frameArgs.length) {
+            if(this.frameCount >= FRAME_LIMIT) {
+                throw new StoryError("Call stack overflow.");
+            }
+            int size = Math.min(FRAME_LIMIT, this.frameCount + FRAME_SEGMENT);
+            this.frameArgs = Arrays.copyOf(this.frameArgs, size);
+            this.frameStore = Arrays.copyOf(this.frameStore, size);
+            this.framePC = Arrays.copyOf(this.framePC, size);
+            this.frameBase = Arrays.copyOf(this.frameBase, size);
+        }
+        this.frameArgs[this.frameCount] = args;
+        this.frameStore[this.frameCount] = store;
+        this.framePC[this.frameCount] = pc;
+        this.frameBase[this.frameCount] = base;
+        ++this.frameCount;
+        this.framePointer = base;
+    }
+    
+    // Makes room for at least this many more words on the stack.
+    protected void reserveStack(int words) throws ZError {
+        int needed = this.stackPointer + words;
+        if(needed <= this.stack.length) {
+            return;
+        }
+        if(needed > STACK_LIMIT) {
+            throw new StoryError("Stack overflow.");
+        }
+        int size = this.stack.length;
+        while(size < needed) {
+            size += STACK_SEGMENT;
+        }
+        this.stack = Arrays.copyOf(this.stack, Math.min(size, STACK_LIMIT));
+    }
+    
+    protected void push(int value) throws ZError {
+        if(this.stackPointer == this.stack.length) {
+            this.reserveStack(1);
+        }
+        this.stack[this.stackPointer++] = value;
+    }
+    
+    protected int pop() throws ZError {
+        // The routine's own stack starts after its locals.
+        if(this.stackPointer <= this.framePointer + this.frameLocals()) {
+            throw new StoryError("Stack underflow.");
+        }
+        return this.stack[--this.stackPointer];
+    }
+    
+    // How many locals the current routine has. None outside any routine.
+    private int frameLocals() {
+        return this.frameCount == 0 ? 0 : this.frameArgs[this.frameCount - 1] & 0x0F;
+    }
+    
     // Utility functions.
     protected int getVariable(int variable) throws ZError {
         return getVariable(variable, false);
@@ -314,7 +969,7 @@ public class ZMachine {
         int value = 0;
         // Variable 0x00 pops the stack.
         if(variable == 0x00) {
-            return this.stack[--this.stackPointer];
+            return this.pop();
         }
         // Variables above 0x10 are global variables, and are stored in the
         // global variable area (two bytes each starting at global_variable_start)
@@ -329,13 +984,13 @@ public class ZMachine {
                 value = this.unsignedNumber(address);
             }
         }
-        // Below 0x10 we're returning local variables. If the call stack has
-        // non-zero size we're returning arguments; otherwise we're just returning
-        // those at the root of the stack (does this make sense?).
-        else if(this.callStackPointer > 0) {
-            value = this.stack[this.callStack[this.callStackPointer-1] + variable - 1];
-        } else {
-            value = this.stack[variable - 1];
+        // Below 0x10 we're returning local variables, which start at the
+        // frame pointer. Outside any routine there aren't any.
+        else {
+            if(variable > this.frameLocals()) {
+                throw new StoryError(String.format("Attempted to read local variable %d of a routine with %d", variable, this.frameLocals()));
+            }
+            value = this.stack[this.framePointer + variable - 1];
         }
         value = value & 0xFFFF;
         return value;
@@ -343,17 +998,19 @@ public class ZMachine {
     
     protected void setVariable(int variable, int value) throws ZError {
         if(variable == 0x00) {
-            this.stack[this.stackPointer++] = value;
+            this.push(value);
         } else if(variable >= 0x10) {
             if(variable > 0xFF) {
                 throw new StoryError(String.format("Attempted to write illegal global variable %d", variable));
             }
             int address = this.globalVariableStart + ((variable - 0x10) * 2);
+            this.checkWrite(address, 2);
             this.setNumber(address, value);
-        } else if(this.callStackPointer > 0) {
-            this.stack[this.callStack[this.callStackPointer-1] + variable - 1] = value;
         } else {
-            this.stack[variable - 1] = value;
+            if(variable > this.frameLocals()) {
+                throw new StoryError(String.format("Attempted to write local variable %d of a routine with %d", variable, this.frameLocals()));
+            }
+            this.stack[this.framePointer + variable - 1] = value;
         }
     }
     
@@ -367,7 +1024,11 @@ public class ZMachine {
         if(obj == 0) {
             return 0;
         }
-        return (this.objectTableStart + 62 + ((obj - 1) * 9));
+        int address = this.objectTableStart + 62 + ((obj - 1) * 9);
+        if(address + 9 > this.memoryDynamicEnd) {
+            throw new StoryError(String.format("Object %d is outside dynamic memory", obj));
+        }
+        return address;
     }
     
     protected boolean getObjectAttribute(int obj, int attribute) throws ZError {
@@ -384,7 +1045,7 @@ public class ZMachine {
         // "part" is the byte we have to look in.
         int bits = 0x80 >>> (attribute % 8);
         int part = attribute / 8;
-        return (this.memory[address + part] & bits) == bits;
+        return (this.getByte(address + part) & bits) == bits;
     }
     
     protected void setObjectAttribute(int obj, int attribute, boolean value) throws ZError {
@@ -399,9 +1060,9 @@ public class ZMachine {
         int bits = 0x80 >>> (attribute % 8);
         int part = attribute / 8;
         if(!value) {
-            this.memory[address + part] &= ~bits; // (AND NOT bits) to unset
+            this.setByte(address + part, this.getByte(address + part) & ~bits); // (AND NOT bits) to unset
         } else {
-            this.memory[address + part] |= bits; // (OR bits) to set.
+            this.setByte(address + part, this.getByte(address + part) | bits); // (OR bits) to set.
         }
     }
     
@@ -425,15 +1086,15 @@ public class ZMachine {
         int address = this.getObjectPropertyTableAddress(obj);
         // The first byte contains the length of the name (in words), which
         // immediately followed that byte (§12.4). Skip the name.
-        address += this.memory[address] * 2 + 1;
+        address += this.getByte(address) * 2 + 1;
         // Properties are stored in descending numerical order, terminated by
         // a property with ID 0 and size -1 (i.e. size byte 0).
-        while(this.memory[address] != 0) {
+        while(this.getByte(address) != 0) {
             // Property number and size are stored together in a single byte;
             // size_byte = (32 * size) - 1 + prop_num
             // where 0 < prop_num ≤ 32
-            int propNum = this.memory[address] % 32;
-            int size = this.memory[address] / 32 + 1;
+            int propNum = this.getByte(address) % 32;
+            int size = this.getByte(address) / 32 + 1;
             // If this is the property we want, return its address.
             if(propNum == prop) {
                 return address + 1;
@@ -449,13 +1110,32 @@ public class ZMachine {
         return 0;
     }
     
+    // The value of a property, or its default if the object doesn't have it.
+    protected int getObjectProperty(int obj, int prop) throws ZError {
+        int address = this.getObjectPropertyAddress(obj, prop);
+        int size = 2;
+        if(address == 0) {
+            address = this.getDefaultPropertyAddress(prop);
+        } else {
+            size = (this.getByte(address - 1) / 32) + 1;
+        }
+        
+        if(size == 1) {
+            return this.getByte(address);
+        } else if(size == 2) {
+            return this.unsignedNumber(address);
+        } else {
+            throw new StoryError("Attmpted get_prop on property of size > 2");
+        }
+    }
+    
     protected int getDefaultPropertyAddress(int prop) throws ZError {
         return this.objectTableStart + (prop - 1) * 2;
     }
     
     protected int getPropertySize(int obj, int prop) throws ZError {
         int address = this.getObjectPropertyAddress(obj, prop) - 1;
-        return this.memory[address] / 32 + 1;
+        return this.getByte(address) / 32 + 1;
     }
     
     protected int getObjectParent(int obj) throws ZError {
@@ -464,7 +1144,7 @@ public class ZMachine {
                       // If it doesn't HHGG crashes.
         }
         int address = this.getObjectAddress(obj);
-        return this.memory[address + 4];
+        return this.getByte(address + 4);
     }
     
     protected int getObjectSibling(int obj) throws ZError {
@@ -472,7 +1152,7 @@ public class ZMachine {
             throw new StoryError("Attmpted to find sibling of null object");
         }
         int address = this.getObjectAddress(obj);
-        return this.memory[address + 5];
+        return this.getByte(address + 5);
     }
     
     protected int getObjectChild(int obj) throws ZError {
@@ -481,7 +1161,7 @@ public class ZMachine {
             return 0;
         }
         int address = this.getObjectAddress(obj);
-        return this.memory[address + 6];
+        return this.getByte(address + 6);
     }
     
     protected int getObjectPreviousSibling(int obj) throws ZError {
@@ -523,19 +1203,19 @@ public class ZMachine {
         int address = this.getObjectAddress(obj);
         int previousSibling = this.getObjectPreviousSibling(obj);
         if(previousSibling == 0) {
-            int parent = this.memory[address + 4];
+            int parent = this.getByte(address + 4);
             if(parent > 0) {
                 int parentAddress = this.getObjectAddress(parent);
                 // parent's child = next sibling
-                this.memory[parentAddress + 6] = this.memory[address + 5];
+                this.setByte(parentAddress + 6, this.getByte(address + 5));
             }
         } else {
             int previousAddress = this.getObjectAddress(previousSibling);
             // previous sibling's sibling = my sibling
-            this.memory[previousAddress + 5] = this.memory[address + 5];
+            this.setByte(previousAddress + 5, this.getByte(address + 5));
         }
-        this.memory[address + 5] = 0; // My sibling = null
-        this.memory[address + 4] = 0; // My parent = null
+        this.setByte(address + 5, 0); // My sibling = null
+        this.setByte(address + 4, 0); // My parent = null
     }
     
     // Inserts an object obj as the first child of an object destination.
@@ -547,22 +1227,22 @@ public class ZMachine {
         //System.out.println("previous_sibling: " + previous_sibling);
         if(previousSibling == 0) {
             // Set the child of the parent of the object to the sibling of the object
-            this.memory[this.getObjectAddress(this.memory[objAddr + 4]) + 6] = this.memory[objAddr + 5];
-            //System.out.println((this.GetObjectAddress(this.memory[obj_addr + 4]) + 6) + " =a " + this.memory[obj_addr + 5]);
+            this.setByte(this.getObjectAddress(this.getByte(objAddr + 4)) + 6, this.getByte(objAddr + 5));
+            //System.out.println((this.GetObjectAddress(this.getByte(obj_addr + 4)) + 6) + " =a " + this.getByte(obj_addr + 5));
         } else {
             // Set the object that this object was a sibling of's sibling to the sibling of this object.
-            this.memory[this.getObjectAddress(previousSibling) + 5] = this.memory[objAddr + 5];
-            //System.out.println((this.GetObjectAddress(previous_sibling) + 5) + " =b " + this.memory[obj_addr + 5]);
+            this.setByte(this.getObjectAddress(previousSibling) + 5, this.getByte(objAddr + 5));
+            //System.out.println((this.GetObjectAddress(previous_sibling) + 5) + " =b " + this.getByte(obj_addr + 5));
         }
         
         // Set the sibling of the object to the child of the destination
-        this.memory[objAddr + 5] = this.memory[destAddr + 6];
-        //System.out.println((obj_addr + 5) + " = " + this.memory[dest_addr + 6]);
+        this.setByte(objAddr + 5, this.getByte(destAddr + 6));
+        //System.out.println((obj_addr + 5) + " = " + this.getByte(dest_addr + 6));
         // Set the child of the destination to the object
-        this.memory[destAddr + 6] = (short)obj;
+        this.setByte(destAddr + 6, obj);
         //System.out.println((dest_addr + 6) + " = " + (short)obj);
         // Set the parent of the object to the destination
-        this.memory[objAddr + 4] = (short)destination;
+        this.setByte(objAddr + 4, destination);
         //System.out.println((obj_addr + 4) + " = " + (short)destination);
     }
     
@@ -580,10 +1260,87 @@ public class ZMachine {
         return true;
     }
     
+    protected boolean loadSave(ByteBuffer save) {
+        try {
+            new QuetzalLoader(this).load(save);
+        } catch(IOException e) {
+            this.io.outputComment("Error reading saved game: " + e.getMessage());
+            return false;
+        } catch(ZError e) {
+            this.io.outputComment("Error loading saved game: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+    
+    protected boolean loadSave(SaveStore store, String key) {
+        // A save for this key may still be on its way to the store.
+        QuetzalSaver.commitPending();
+        try {
+            InputStream save = store.read(key);
+            if(save == null) {
+                this.io.outputComment("Error: No saved game.");
+                return false;
+            }
+            new QuetzalLoader(this).load(save);
+        } catch(IOException e) {
+            this.io.outputComment("Error reading saved game: " + e.getMessage());
+            return false;
+        } catch(ZError e) {
+            this.io.outputComment("Error loading saved game: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+    
+    // Saving to memory is quick, so this is never done in the background.
+    protected boolean saveGame(SaveTarget target) {
+        if(this.saver == null) {
+            this.saver = new QuetzalSaver(this);
+        }
+        try {
+            return target.saveBytes(this.saver.writeSave());
+        } catch(IOException e) {
+            this.io.outputComment("Couldn't save: " + e.getMessage());
+            return false;
+        } catch(ZError e) {
+            this.io.outputComment("Internal error saving: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    protected boolean saveGame(SaveStore store, String key) {
+        if(this.saver == null) {
+            this.saver = new QuetzalSaver(this);
+        }
+        if(QuetzalSaver.SAVE_IN_BACKGROUND) {
+            this.saver.writeSaveInBackground(store, key, this.io);
+            return true;
+        }
+        try {
+            this.saver.writeSave(store, key);
+        } catch(IOException e) {
+            this.io.outputComment("Couldn't save: " + e.getMessage());
+            return false;
+        } catch(ZError e) {
+            this.io.outputComment("Internal error saving: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+    
     protected boolean saveGame(File file) {
-        QuetzalSaver saver = new QuetzalSaver(this);
+        if(this.saver == null) {
+            this.saver = new QuetzalSaver(this);
+        }
+        if(QuetzalSaver.SAVE_IN_BACKGROUND) {
+            // Any problem is reported once the save is done. The story
+            // carries on as though it worked.
+            this.saver.writeSaveInBackground(file, this.io);
+            return true;
+        }
         try {
-            saver.writeSave(file);
+            this.saver.writeSave(file);
         } catch(IOException e) {
             this.io.outputComment("Couldn't write to file: " + e.getMessage());
             return false;
@@ -594,7 +1351,16 @@ public class ZMachine {
         return true;
     }
     
+    // True if the ZIO has said it will throw output away, in which case
+    // there's no point producing any.
+    protected boolean discardingOutput() {
+        return this.io instanceof OutputControl && ((OutputControl)this.io).isDiscardingOutput();
+    }
+    
     protected void updateStatus() throws ZError {
+        if(this.discardingOutput()) {
+            return;
+        }
         String location;
         try {
             location = this.getObjectName(this.getVariable(0x10)).toZSCII().toString();
@@ -604,7 +1370,7 @@ public class ZMachine {
         int a = this.getVariable(0x11, true);
         int b = this.getVariable(0x12, true);
         int type = ZIO.SCORE;
-        if(this.version == 3 && (this.memory[0x01] & 0x80) == 0x80) {
+        if(this.version == 3 && (this.getByte(0x01) & 0x80) == 0x80) {
             type = ZIO.TIME;
         }
         this.io.setStatus(location, a, b, type);
@@ -612,13 +1378,13 @@ public class ZMachine {
     
     // Effectively the "return" value of opcodes, where applicable.
     protected void store(int value) throws ZError {
-        short variable = this.memory[++this.pc];
+        short variable = this.getByte(++this.pc);
         this.setVariable(variable, value);
     }
     
     // Generally used by conditional instructions (e.g. je, etc.)
     protected void branch(boolean result) throws ZError {
-        short branch = this.memory[++this.pc];
+        short branch = this.getByte(++this.pc);
         
         // The required result is stored in the top bit of the branch byte.
         // The target is stored in the bottom six bits. If the second bit is
@@ -628,7 +1394,7 @@ public class ZMachine {
         int target = branch & 0x3F;
         if((branch & 0x40) == 0) {
             target = target << 8;
-            target |= this.memory[++this.pc];
+            target |= this.getByte(++this.pc);
         }
         target = this.sign(target, 14);
         //System.out.println("Branch target: " + target);
@@ -642,6 +1408,9 @@ public class ZMachine {
                 this.returnFromRoutine(1); // target = 1 means "return true"
             } else {
                 this.pc += target - 2; // Offset by 2 to allow for 0 and 1 being special.
+                if(this.checking) {
+                    this.checkJump(this.pc + 1);
+                }
             }
         }
     }
@@ -651,12 +1420,12 @@ public class ZMachine {
         int lowerBound = 0;
         int upperBound = this.dictionaryLength;
         int k = this.dictionaryEntryLength;
-        int start = this.dictionaryStart + this.memory[this.dictionaryStart] + 4;
+        int start = this.dictionaryStart + this.getByte(this.dictionaryStart) + 4;
         short[] bytes = zstring.toBytes(4);
         while(true) {
             int direction = 0;
             for(int j = 0; j < 4; ++j) {
-                short chr = this.memory[start  +index*k + j];
+                short chr = this.getByte(start  +index*k + j);
                 if(chr == bytes[j]) {
                     continue;
                 } else if(chr > bytes[j]) {
@@ -712,31 +1481,37 @@ public class ZMachine {
         }
         
         // Store the parsed data.
-        // First byte is the number of words.
-        this.memory[tableAddress + 1] = (short)words.size();
+        // The table starts with how many words it can hold, then the
+        // number of words, then four bytes per word.
+        this.checkRead(tableAddress, 1);
+        int maxWords = this.getByte(tableAddress);
+        this.checkWrite(tableAddress + 1, 1 + 4 * Math.min(words.size(), maxWords));
+        this.setByte(tableAddress + 1, words.size());
         for(short i = 0; i < words.size(); ++i) {
             // If i > table size, abort so we don't overrun.
-            if(i >= this.memory[tableAddress]) {
+            if(i >= maxWords) {
                 break;
             }
             ArrayShortList word = words.get(i);
             ZString zstring = (new ZSCIIString(this, word.toArray()).toZString(4));
             int pos = this.locateStringInDictionary(zstring);
             this.setNumber(tableAddress + i*4 + 2 + 0, pos);
-            this.memory[tableAddress + i*4 + 2 + 2] = (short)word.size();
-            this.memory[tableAddress + i*4 + 2 + 3] = (short)(wordStarts.get(i) + 1);
+            this.setByte(tableAddress + i*4 + 2 + 2, word.size());
+            this.setByte(tableAddress + i*4 + 2 + 3, wordStarts.get(i) + 1);
         }
     }
     
     // Used to return from procedures. Split out from the 'ret' operand because
     // it's used by other functions here, too.
     protected void returnFromRoutine(int value) throws ZError {
-        int stackTop = this.callStack[--this.callStackPointer];
-        this.pc = this.callStack[--this.callStackPointer];
-        int var = this.callStack[--this.callStackPointer];
-        --this.callStackPointer; // Pop off useless word.
-        this.stackPointer = (short)stackTop;
-        this.setVariable(var, value);
+        if(this.frameCount == 0) {
+            throw new StoryError("Returned from the main routine.");
+        }
+        int frame = --this.frameCount;
+        this.pc = this.framePC[frame];
+        this.stackPointer = this.frameBase[frame];
+        this.framePointer = frame > 0 ? this.frameBase[frame - 1] : 0;
+        this.setVariable(this.frameStore[frame], value);
     }
     
     // Deals with calling the appropriate functions.
@@ -841,20 +1616,22 @@ public class ZMachine {
         // Routines are stored in memory with a byte containing the number
         // of variables they have, followed by a default value for each of
         // those variables (two bytes each), followed by the actual code.
-        short varcount = this.memory[routine];
+        if(routine >= this.memorySize) {
+            throw new StoryError(String.format("Calling address %d past the end of the story!", routine));
+        }
+        short varcount = this.getByte(routine);
         if(varcount > 15) {
             throw new StoryError(String.format("Calling address %d without a routine!", routine));
         }
         this.pc++;
-        // This value isn't used in execution, but is required to store the save
-        // files.
-        this.callStack[this.callStackPointer++] = (((0x7F >>> args.length - 1)) << 8) | varcount;
-        // These are needed to return from the routine we're calling.
-        this.callStack[this.callStackPointer++] = this.memory[this.pc];
-        this.callStack[this.callStackPointer++] = this.pc;
-        this.callStack[this.callStackPointer++] = this.stackPointer;
+        // The argument mask isn't used in execution, but is required to
+        // store the save files. The rest are needed to return from the
+        // routine we're calling.
+        this.pushFrame((((0x7F >>> args.length - 1)) << 8) | varcount,
+                this.getByte(this.pc), this.pc, this.stackPointer);
         // If we have an argument, push that onto the stack.
         // If we don't, push the default onto the stack.
+        this.reserveStack(varcount);
         for(int i = 0; i < varcount; ++i) {
             if(i + 1 < args.length) {
                 this.stack[this.stackPointer++] = args[i+1];
@@ -865,21 +1642,45 @@ public class ZMachine {
         
         // Jump into the routine!
         this.pc = routine + varcount * 2;
+        if(this.threaded != null) {
+            this.threaded.called(this, routine);
+        }
+        if(this.jit != null) {
+            CompiledRoutine compiled = this.jit.called(this, routine);
+            if(compiled != null) {
+                compiled.run(this);
+                this.pc--; // Compiled code leaves pc on the next instruction.
+            }
+        }
     }
     
-    protected void op_storew(int arr, int wordIndex, int value) {
-        this.setNumber(arr + 2 * wordIndex, value);
+    protected void op_storew(int arr, int wordIndex, int value) throws ZError {
+        int address = arr + 2 * wordIndex;
+        if(this.checking) {
+            this.checkWrite(address, 2);
+        }
+        this.setNumber(address, value);
     }
     
-    protected void op_storeb(int arr, int byteIndex, int value) {
-        this.memory[arr + byteIndex] = (short)value;
+    protected void op_storeb(int arr, int byteIndex, int value) throws ZError {
+        int address = arr + byteIndex;
+        if(this.checking) {
+            this.checkWrite(address, 1);
+        }
+        this.setByte(address, value);
     }
     
     protected void op_put_prop(int obj, int prop, int value) throws ZError {
         int address = this.getObjectPropertyAddress(obj, prop);
-        int size = this.getPropertySize(obj, prop);
+        if(address == 0) {
+            throw new StoryError(String.format("Illegal put_prop on missing property %d of object %d", prop, obj));
+        }
+        int size = this.getByte(address - 1) / 32 + 1;
+        if(size <= 2) {
+            this.checkWrite(address, size);
+        }
         if(size == 1) {
-            this.memory[address] = (short)value;
+            this.setByte(address, value);
         } else if(size == 2) {
             this.setNumber(address, value);
         } else {
@@ -888,25 +1689,89 @@ public class ZMachine {
     }
     
     protected void op_read(int textAddress, int parseTable) throws ZError {
-        this.updateStatus();
-        String input = this.io.readLine();
-        if(input == null) {
+        this.readTextAddress = textAddress;
+        this.readParseTable = parseTable;
+        if(this.stopAtRead) {
+            this.stopAtRead = false;
+            this.pausedAtRead = true;
+            this.running = false;
+            this.pc--; // Stay on the read once executeCycle moves us on.
             return;
         }
-        int max_length = this.memory[textAddress];
+        this.startRead();
+        this.finishRead();
+    }
+    
+    // The part of op_read that happens before asking for input.
+    private void startRead() {
+        if(this.undoRing != null) {
+            this.undoRing.capture(this.readTextAddress, this.readParseTable);
+        }
+        if(this.journal != null) {
+            this.journal.readStarted(this.readTextAddress, this.readParseTable);
+        }
+    }
+    
+    /**
+     * Picks up in the middle of a read, as captured by a journal checkpoint,
+     * so that the machine is ready to run() again.
+     */
+    void resumeRead(int textAddress, int parseTable) throws ZError {
+        this.readTextAddress = textAddress;
+        this.readParseTable = parseTable;
+        this.finishRead();
+        this.pc++; // As executeCycle would have.
+    }
+    
+    // The part of op_read that waits for input and then stores it.
+    private void finishRead() throws ZError {
+        String input;
+        while(true) {
+            this.updateStatus();
+            input = this.io.readLine();
+            if(input == null) {
+                return;
+            }
+            if(this.undoRing == null || !UNDO_COMMAND.equals(input.trim().toLowerCase())) {
+                break;
+            }
+            if(this.undo(1)) {
+                if(this.journal != null) {
+                    this.journal.undone(this.readTextAddress, this.readParseTable);
+                }
+                this.io.outputComment("Undone.");
+            } else {
+                this.io.outputComment("Nothing to undo.");
+            }
+        }
+        // An undo may have moved us to a different read.
+        int textAddress = this.readTextAddress;
+        int parseTable = this.readParseTable;
+        // The story gave us these addresses, so they're always checked.
+        this.checkRead(textAddress, 1);
+        int max_length = this.getByte(textAddress);
         ZSCIIString zscii = new ZSCIIString(this, input.toLowerCase().substring(0, max_length <= input.length() ? max_length : input.length()));
         short[] bytes = zscii.toBytes();
-        System.arraycopy(bytes, 0, this.memory, textAddress + 1, bytes.length);
-        this.memory[textAddress + 1 + bytes.length] = 0;
+        this.checkWrite(textAddress + 1, bytes.length + 1);
+        for(int i = 0; i < bytes.length; ++i) {
+            this.setByte(textAddress + 1 + i, bytes[i]);
+        }
+        this.setByte(textAddress + 1 + bytes.length, 0);
         this.tokeniseZSCII(parseTable, zscii);
     }
     
     protected void op_print_char(int chr) {
+        if(this.discardingOutput()) {
+            return;
+        }
         short[] achr = { (short)chr };
         this.io.outputString((new ZSCIIString(this, achr)).toString());
     }
     
     protected void op_print_num(int num) {
+        if(this.discardingOutput()) {
+            return;
+        }
         this.io.outputString(String.valueOf(num));
     }
     
@@ -914,20 +1779,22 @@ public class ZMachine {
         // r = 0 re-seeds the generator.
         r = this.sign(r);
         if(r == 0) {
-            this.rng = new Random(); // This seems to be the only way to re-seed.
+            this.rng.setSeed(this.newSeed());
+            this.store(0);
         } else if(r < 0) {
             this.rng.setSeed(r * -1);
+            this.store(0);
         } else {
             this.store(this.rng.nextInt(r) + 1);
         }
     }
     
-    protected void op_push(int value) {
-        this.stack[this.stackPointer++] = value;
+    protected void op_push(int value) throws ZError {
+        this.push(value);
     }
     
     protected void op_pull(int variable) throws ZError {
-        this.setVariable(variable, this.stack[--this.stackPointer]);
+        this.setVariable(variable, this.pop());
     }
     
     protected void op_split_window(int lines) {
@@ -955,6 +1822,10 @@ public class ZMachine {
     }
     
     protected void op_print() throws ZError {
+        if(this.discardingOutput()) {
+            this.pc = ZString.skip(this, this.pc + 1) - 1;
+            return;
+        }
         ZString zchars = ZString.fromMemory(this, this.pc + 1);
         this.pc += zchars.length() / 3 * 2;
         this.io.outputString(zchars.toZSCII().toString());
@@ -971,6 +1842,14 @@ public class ZMachine {
     }
     
     protected void op_save() throws ZError {
+        if(this.saveStore != null) {
+            this.branch(this.saveGame(this.saveStore, this.saveSession));
+            return;
+        }
+        if(this.io instanceof SaveTarget) {
+            this.branch(this.saveGame((SaveTarget)this.io));
+            return;
+        }
         File file = this.io.chooseFile("Choose a Save File", ZIO.SAVE);
         if(file == null) {
             this.io.outputComment("No file selected.");
@@ -981,6 +1860,20 @@ public class ZMachine {
     }
     
     protected void op_restore() throws ZError {
+        if(this.saveStore != null) {
+            this.branch(this.loadSave(this.saveStore, this.saveSession));
+            return;
+        }
+        if(this.io instanceof SaveTarget) {
+            ByteBuffer save = ((SaveTarget)this.io).restoreBytes();
+            if(save == null) {
+                this.io.outputComment("Error: No saved game.");
+                this.branch(false);
+            } else {
+                this.branch(this.loadSave(save));
+            }
+            return;
+        }
         File file = this.io.chooseFile("Choose a Save File", ZIO.LOAD);
         if(file == null) {
             this.io.outputComment("No file selected.");
@@ -991,27 +1884,28 @@ public class ZMachine {
     }
     
     protected void op_restart() throws ZError {
-        this.init();
+        this.reset();
         this.io.reset();
         this.pc--;
     }
     
     protected void op_ret_popped() throws ZError {
-        this.returnFromRoutine(this.stack[--this.stackPointer]);
+        this.returnFromRoutine(this.pop());
     }
     
-    protected void op_pop() {
-        --this.stackPointer;
+    protected void op_pop() throws ZError {
+        this.pop();
     }
     
     protected void op_quit() {
-        this.memory = null;
-        this.stack = null;
-        this.callStack = null;
+        // Memory is kept so that the machine can be reset and used again.
         this.running = false;
     }
     
     protected void op_new_line() {
+        if(this.discardingOutput()) {
+            return;
+        }
         this.io.outputLine("");
     }
     
@@ -1050,7 +1944,7 @@ public class ZMachine {
         if(address == 0) {
             this.store(0);
         } else {
-            this.store(this.memory[address - 1] / 32 + 1);
+            this.store(this.getByte(address - 1) / 32 + 1);
         }
     }
     
@@ -1063,6 +1957,9 @@ public class ZMachine {
     }
     
     protected void op_print_addr(int address) throws ZError {
+        if(this.discardingOutput()) {
+            return;
+        }
         ZString zchars = ZString.fromMemory(this, address);
         this.io.outputString(zchars.toZSCII().toString());
     }
@@ -1072,6 +1969,9 @@ public class ZMachine {
     }
     
     protected void op_print_obj(int obj) throws ZError {
+        if(this.discardingOutput()) {
+            return;
+        }
         this.io.outputString(this.getObjectName(obj).toZSCII().toString());
     }
     
@@ -1079,9 +1979,12 @@ public class ZMachine {
         this.returnFromRoutine(value);
     }
     
-    protected void op_jump(int label) {
+    protected void op_jump(int label) throws ZError {
         int offset = this.sign(label);
         this.pc += offset - 2;
+        if(this.checking) {
+            this.checkJump(this.pc + 1);
+        }
     }
     
     protected void op_print_paddr(int paddr) throws ZError {
@@ -1168,29 +2071,23 @@ public class ZMachine {
     }
     
     protected void op_loadw(int array, int word_index) throws ZError {
-        this.store(this.unsignedNumber(array + word_index * 2));
+        int address = array + word_index * 2;
+        if(this.checking) {
+            this.checkRead(address, 2);
+        }
+        this.store((this.getByte(address) << 8) | this.getByte(address + 1));
     }
     
     protected void op_loadb(int array, int byte_index) throws ZError {
-        this.store(this.memory[array + byte_index]);
+        int address = array + byte_index;
+        if(this.checking) {
+            this.checkRead(address, 1);
+        }
+        this.store(this.getByte(address));
     }
     
     protected void op_get_prop(int obj, int prop) throws ZError {
-        int address = this.getObjectPropertyAddress(obj, prop);
-        int size = 2;
-        if(address == 0) {
-            address = this.getDefaultPropertyAddress(prop);
-        } else {
-            size = (this.memory[address - 1] / 32) + 1;
-        }
-        
-        if(size == 1) {
-            this.store(this.memory[address]);
-        } else if(size == 2) {
-            this.store(this.unsignedNumber(address));
-        } else {
-            throw new StoryError("Attmpted get_prop on property of size > 2");
-        }
+        this.store(this.getObjectProperty(obj, prop));
     }
     
     protected void op_get_prop_addr(int obj, int prop) throws ZError {
@@ -1201,13 +2098,13 @@ public class ZMachine {
         int address;
         if(prop == 0) {
             address = this.getObjectPropertyTableAddress(obj);
-            address += this.memory[address] * 2 + 1;
+            address += this.getByte(address) * 2 + 1;
         } else {
             address = this.getObjectPropertyAddress(obj, prop);
-            address += this.memory[address - 1] / 32 + 1;
+            address += this.getByte(address - 1) / 32 + 1;
         }
         
-        short next_size_byte = this.memory[address];
+        short next_size_byte = this.getByte(address);
         if(address == 0) {
             throw new StoryError("Illegal get_next_prop on nonexistent object property");
         }
@@ -0,0 +1,45 @@
+package zmachine;
+
+import java.util.Random;
+
+/**
+ * A java.util.Random whose state can be read back and restored, so that it
+ * can be carried along with snapshots and forks. Uses the same generator as
+ * java.util.Random.
+ */
+public class ZRandom extends Random {
+    private static final long serialVersionUID = 1L;
+    
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    private static final long ADDEND = 0xBL;
+    private static final long MASK = (1L << 48) - 1;
+    
+    private long state;
+    
+    public ZRandom() {
+        super();
+    }
+    
+    public ZRandom(long seed) {
+        super(seed);
+    }
+    
+    @Override
+    public synchronized void setSeed(long seed) {
+        this.state = (seed ^ MULTIPLIER) & MASK;
+    }
+    
+    @Override
+    protected int next(int bits) {
+        this.state = (this.state * MULTIPLIER + ADDEND) & MASK;
+        return (int)(this.state >>> (48 - bits));
+    }
+    
+    public long getState() {
+        return this.state;
+    }
+    
+    public void setState(long state) {
+        this.state = state;
+    }
+}
@@ -0,0 +1,40 @@
+package zmachine;
+
+/**
+ * A copy of everything in a ZMachine that changes as it runs: dynamic memory,
+ * both stacks, the program counter and the RNG.
+ * 
+ * Dynamic memory is held as pages of ZMachine.PAGE_SIZE bytes. Pages are
+ * never modified once they belong to a snapshot, so any page that has not
+ * been written since the machine's previous snapshot (or the snapshot it was
+ * restored or forked from) is shared instead of copied. Pages are whole, so
+ * the last one runs on past the end of dynamic memory into static memory,
+ * which never changes. Taking a snapshot costs one reference per page: the
+ * machine hands its own pages over, and copies a page again only when it
+ * next writes to it.
+ */
+public class ZSnapshot {
+    final short[][] pages;
+    final int[] stack;
+    final int[] callStack;
+    final int pc;
+    final long rngState;
+    final long memoryHash;
+    
+    ZSnapshot(short[][] pages, int[] stack, int[] callStack, int pc, long rngState, long memoryHash) {
+        this.pages = pages;
+        this.stack = stack;
+        this.callStack = callStack;
+        this.pc = pc;
+        this.rngState = rngState;
+        this.memoryHash = memoryHash;
+    }
+    
+    public int getPC() {
+        return this.pc;
+    }
+    
+    public int getPageCount() {
+        return this.pages.length;
+    }
+}
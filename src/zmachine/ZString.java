@@ -21,7 +21,7 @@ public class ZString {
         int length = 0;
         while(true) {
             length += 3;
-            if((z.memory[i] & 0x80) == 0x80) {
+            if((z.getByte(i) & 0x80) == 0x80) {
                 break;
             }
             i += 2;
@@ -31,15 +31,30 @@ public class ZString {
         // Now we actually build our string.
         i = 0;
         for(int j = address; (i < length); j += 2) {
-            chars[i++] = (byte)((z.memory[j] >> 2) & 0x1F);
-            chars[i++] = (byte)(((z.memory[j] & 0x03) << 3) | ((z.memory[j+1] >> 5) & 0x1F));
-            chars[i++] = (byte)(z.memory[j+1] & 0x1F);
+            chars[i++] = (byte)((z.getByte(j) >> 2) & 0x1F);
+            chars[i++] = (byte)(((z.getByte(j) & 0x03) << 3) | ((z.getByte(j+1) >> 5) & 0x1F));
+            chars[i++] = (byte)(z.getByte(j+1) & 0x1F);
         }
         
         // Now we have our characters.
         return new ZString(z, chars);
     }
     
+    // Returns the address just past the string at start, without decoding
+    // any of it.
+    public static int skip(ZMachine z, int start) throws StoryError {
+        int address = start;
+        while(true) {
+            if(address < 0 || address + 1 >= z.memorySize) {
+                throw new StoryError("Unterminated string at " + start + ".");
+            }
+            if((z.getByte(address) & 0x80) != 0) {
+                return address + 2;
+            }
+            address += 2;
+        }
+    }
+    
     protected byte[] chars;
     protected ZMachine z;
     